@@ -0,0 +1,178 @@
+package co.adrianblan.cheddar;
+
+import android.os.Parcel;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+public class ItemCodecTest extends TestCase {
+
+    private static FeedItem feedItem(long id, String by, String domain) {
+        FeedItem f = new FeedItem();
+        f.setSubmissionId(id);
+        f.setTitle("Show HN: Cheddar " + id);
+        f.setBy(by);
+        f.setScore(id % 500);
+        f.setDescendants(id % 90);
+        f.setTimestamp(1437800000L + id);
+        f.setShortUrl(domain);
+        f.setLongUrl(domain != null ? "https://" + domain + "/" + id : null);
+        f.setLetter(ItemDecoder.getLetter(domain));
+        f.setColor(0xff336699);
+        return f;
+    }
+
+    private static Comment comment(long id, String by, int hierarchy) {
+        Comment c = new Comment();
+        c.setId(id);
+        c.setBy(by);
+        c.setBody("<p>Comment " + id + " with <a href=\"https://example.com\">a link</a> &amp; \u00e5\u00e4\u00f6");
+        c.setTimestamp(1437800000L + id);
+        c.setHierarchy(hierarchy);
+        c.setHiddenChildren(hierarchy * 3);
+        c.setHideChildren(hierarchy % 2 == 1);
+        return c;
+    }
+
+    private static void assertSame(FeedItem expected, FeedItem actual) {
+        assertEquals(expected.getSubmissionId(), actual.getSubmissionId());
+        assertEquals(expected.getTitle(), actual.getTitle());
+        assertEquals(expected.getBy(), actual.getBy());
+        assertEquals(expected.getText(), actual.getText());
+        assertEquals(expected.getScore(), actual.getScore());
+        assertEquals(expected.getDescendants(), actual.getDescendants());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getShortUrl(), actual.getShortUrl());
+        assertEquals(expected.getLongUrl(), actual.getLongUrl());
+        assertEquals(expected.getLetter(), actual.getLetter());
+        assertEquals(expected.getColor(), actual.getColor());
+    }
+
+    private static void assertSame(Comment expected, Comment actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getBy(), actual.getBy());
+        assertEquals(expected.getBody(), actual.getBody());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getHierarchy(), actual.getHierarchy());
+        assertEquals(expected.getHiddenChildren(), actual.getHiddenChildren());
+        assertEquals(expected.hasHideChildren(), actual.hasHideChildren());
+    }
+
+    public void testFeedItemRoundTrip() {
+        FeedItem f = feedItem(9876543210L, "pg", "example.com");
+        assertSame(f, ItemCodec.decode(ItemCodec.FEED_ITEMS, ItemCodec.encode(ItemCodec.FEED_ITEMS, f)));
+
+        // Ask HN posts have no url or author
+        FeedItem ask = feedItem(1, null, null);
+        assertSame(ask, ItemCodec.decode(ItemCodec.FEED_ITEMS, ItemCodec.encode(ItemCodec.FEED_ITEMS, ask)));
+    }
+
+    public void testListRoundTrip() {
+        ArrayList<FeedItem> feed = new ArrayList<>();
+        ArrayList<Comment> comments = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++) {
+            feed.add(feedItem(9000000 + i, "user" + (i % 7), "domain" + (i % 5) + ".com"));
+            comments.add(comment(9100000 + i, "user" + (i % 7), i % 6));
+        }
+
+        ArrayList<FeedItem> decodedFeed = ItemCodec.decodeList(ItemCodec.FEED_ITEMS, ItemCodec.encodeList(ItemCodec.FEED_ITEMS, feed));
+        ArrayList<Comment> decodedComments = ItemCodec.decodeList(ItemCodec.COMMENTS, ItemCodec.encodeList(ItemCodec.COMMENTS, comments));
+
+        assertEquals(feed.size(), decodedFeed.size());
+        assertEquals(comments.size(), decodedComments.size());
+
+        for (int i = 0; i < feed.size(); i++) {
+            assertSame(feed.get(i), decodedFeed.get(i));
+            assertSame(comments.get(i), decodedComments.get(i));
+        }
+
+        // Repeated authors come back as the same instance
+        assertTrue(decodedComments.get(0).getBy() == decodedComments.get(7).getBy());
+    }
+
+    public void testParcelRoundTrip() {
+        Comment c = comment(42, "dang", 3);
+
+        Parcel parcel = Parcel.obtain();
+        c.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+
+        assertSame(c, Comment.CREATOR.createFromParcel(parcel));
+        parcel.recycle();
+    }
+
+    public void testRepeatedSymbolsAreSmall() {
+        ArrayList<Comment> one = new ArrayList<>();
+        one.add(comment(1, "a_rather_long_username", 0));
+
+        ArrayList<Comment> two = new ArrayList<>(one);
+        two.add(comment(2, "a_rather_long_username", 0));
+
+        int first = ItemCodec.encodeList(ItemCodec.COMMENTS, one).length;
+        int second = ItemCodec.encodeList(ItemCodec.COMMENTS, two).length - first;
+
+        // The second comment refers to the author by index
+        assertTrue(second < first - "a_rather_long_username".length());
+    }
+
+    public void testSmallerThanParcel() {
+        ArrayList<FeedItem> feed = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++) {
+            feed.add(feedItem(9000000 + i, "user" + (i % 7), "domain" + (i % 5) + ".com"));
+        }
+
+        // What a plain parcel of the same fields used to take, with strings in UTF-16
+        Parcel parcel = Parcel.obtain();
+        for (FeedItem f : feed) {
+            parcel.writeLong(f.getSubmissionId());
+            parcel.writeString(f.getTitle());
+            parcel.writeString(f.getBy());
+            parcel.writeString(f.getText());
+            parcel.writeLong(f.getScore());
+            parcel.writeLong(f.getDescendants());
+            parcel.writeString(TimeFormatter.format(f.getTimestamp()));
+            parcel.writeString(f.getShortUrl());
+            parcel.writeString(f.getLongUrl());
+            parcel.writeString(f.getLetter());
+            parcel.writeInt(f.getColor());
+        }
+        int parcelSize = parcel.dataSize();
+        parcel.recycle();
+
+        int codecSize = ItemCodec.encodeList(ItemCodec.FEED_ITEMS, feed).length;
+        assertTrue("codec " + codecSize + " parcel " + parcelSize, codecSize * 2 < parcelSize);
+    }
+
+    public void testRejectsOtherVersions() {
+        byte[] data = ItemCodec.encodeList(ItemCodec.COMMENTS, new ArrayList<Comment>());
+        data[0] = (byte) (ItemCodec.VERSION + 1);
+
+        assertNull(ItemCodec.decodeList(ItemCodec.COMMENTS, data));
+    }
+
+    public void testRejectsTruncatedData() {
+        ArrayList<Comment> comments = new ArrayList<>();
+        comments.add(comment(1, "pg", 0));
+
+        byte[] data = ItemCodec.encodeList(ItemCodec.COMMENTS, comments);
+        byte[] truncated = new byte[data.length - 3];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+
+        assertNull(ItemCodec.decodeList(ItemCodec.COMMENTS, truncated));
+    }
+
+    public void testRejectsBadCounts() {
+        ItemCodec.Writer out = new ItemCodec.Writer(16);
+        out.writeByte(ItemCodec.VERSION);
+        out.writeVarLong(Integer.MAX_VALUE);
+        assertNull(ItemCodec.decodeList(ItemCodec.COMMENTS, out.toByteArray()));
+
+        out = new ItemCodec.Writer(16);
+        out.writeByte(ItemCodec.VERSION);
+        out.writeVarLong(-1);
+        assertNull(ItemCodec.decodeList(ItemCodec.COMMENTS, out.toByteArray()));
+    }
+}
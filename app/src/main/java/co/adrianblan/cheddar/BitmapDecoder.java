@@ -0,0 +1,118 @@
+package co.adrianblan.cheddar;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Decodes images straight down to the size they will be shown at, instead of decoding them at full size first
+// The bounds are read before anything is allocated, and inSampleSize skips most of the pixels of large images
+// What is left over after scaling goes back to the BitmapPool, so that the next image of that size reuses it
+public class BitmapDecoder {
+
+    // Scratch space for the decoder and for reading streams, one per thread since we decode on several
+    private static final ThreadLocal<byte[]> tempStorage = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[16 * 1024];
+        }
+    };
+
+    // Reads and decodes an image so that its largest side is at most targetSize
+    // Returns null if the stream didn't contain an image
+    public static Bitmap decodeStream(InputStream in, int targetSize) throws IOException {
+        byte[] data = readFully(in);
+        return decodeByteArray(data, data.length, targetSize);
+    }
+
+    public static Bitmap decodeByteArray(byte[] data, int length, int targetSize) {
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inTempStorage = tempStorage.get();
+
+        // Find out how large the image is, without decoding any pixels
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, length, options);
+
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight, targetSize);
+        options.inMutable = true;
+
+        // Before KitKat, bitmaps can only be reused when the image isn't sampled
+        if (options.inSampleSize == 1) {
+            options.inBitmap = BitmapPool.getInstance().get(options.outWidth, options.outHeight, Bitmap.Config.ARGB_8888);
+        }
+
+        Bitmap decoded;
+
+        try {
+            decoded = BitmapFactory.decodeByteArray(data, 0, length, options);
+        } catch (IllegalArgumentException e) {
+
+            // The image couldn't be decoded into the bitmap, such as a gif, so decode it into a new one
+            BitmapPool.getInstance().put(options.inBitmap);
+            options.inBitmap = null;
+            decoded = BitmapFactory.decodeByteArray(data, 0, length, options);
+        }
+
+        if (decoded == null) {
+            BitmapPool.getInstance().put(options.inBitmap);
+            return null;
+        }
+
+        return scaleDown(decoded, targetSize);
+    }
+
+    // The largest power of two which still leaves both sides at least as large as the target
+    static int sampleSize(int width, int height, int targetSize) {
+
+        int sampleSize = 1;
+
+        while (width / (sampleSize * 2) >= targetSize && height / (sampleSize * 2) >= targetSize) {
+            sampleSize *= 2;
+        }
+
+        return sampleSize;
+    }
+
+    // Scales the rest of the way to the target, keeping the aspect ratio
+    private static Bitmap scaleDown(Bitmap decoded, int targetSize) {
+
+        int largest = Math.max(decoded.getWidth(), decoded.getHeight());
+
+        if (largest <= targetSize) {
+            return decoded;
+        }
+
+        int width = Math.max(1, decoded.getWidth() * targetSize / largest);
+        int height = Math.max(1, decoded.getHeight() * targetSize / largest);
+
+        Bitmap scaled = Bitmap.createScaledBitmap(decoded, width, height, true);
+
+        // Nobody has seen the decoded bitmap, so it's free for the next image of the same size
+        if (scaled != decoded) {
+            BitmapPool.getInstance().put(decoded);
+        }
+
+        return scaled;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8 * 1024);
+        byte[] buffer = tempStorage.get();
+        int read;
+
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+
+        return out.toByteArray();
+    }
+}
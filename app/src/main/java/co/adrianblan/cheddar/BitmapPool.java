@@ -0,0 +1,106 @@
+package co.adrianblan.cheddar;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+// Bitmaps which nobody uses anymore, kept so that the next decode of the same size can draw into one of them
+// Before KitKat a bitmap can only be reused for an image of exactly the same size, so they are bucketed by size
+// Only bitmaps which are guaranteed to be unreferenced may be put here, since they will be drawn over
+public class BitmapPool {
+
+    // A handful of large favicons
+    private static final int MAX_BYTES = 1024 * 1024;
+
+    private static BitmapPool instance;
+
+    private final Map<Long, ArrayList<Bitmap>> buckets;
+
+    // In the order they were put, so that the oldest are thrown away first
+    private final LinkedList<Bitmap> order;
+    private int bytes;
+
+    public static synchronized BitmapPool getInstance() {
+        if (instance == null) {
+            instance = new BitmapPool();
+        }
+        return instance;
+    }
+
+    private BitmapPool() {
+        buckets = new HashMap<>();
+        order = new LinkedList<>();
+    }
+
+    // Returns a bitmap of exactly this size and config to decode into, or null if there isn't one
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+
+        ArrayList<Bitmap> bucket = buckets.get(key(width, height, config));
+
+        if (bucket == null || bucket.isEmpty()) {
+            return null;
+        }
+
+        Bitmap b = bucket.remove(bucket.size() - 1);
+        order.remove(b);
+        bytes -= sizeOf(b);
+
+        return b;
+    }
+
+    // Hands over a bitmap which is no longer used anywhere
+    public synchronized void put(Bitmap b) {
+
+        if (b == null || b.isRecycled() || !b.isMutable() || b.getConfig() == null) {
+            return;
+        }
+
+        int size = sizeOf(b);
+        if (size > MAX_BYTES) {
+            b.recycle();
+            return;
+        }
+
+        long key = key(b.getWidth(), b.getHeight(), b.getConfig());
+        ArrayList<Bitmap> bucket = buckets.get(key);
+
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            buckets.put(key, bucket);
+        }
+
+        bucket.add(b);
+        order.add(b);
+        bytes += size;
+
+        // Make room by throwing away the oldest bitmaps
+        while (bytes > MAX_BYTES) {
+            Bitmap oldest = order.removeFirst();
+            buckets.get(key(oldest.getWidth(), oldest.getHeight(), oldest.getConfig())).remove(oldest);
+            bytes -= sizeOf(oldest);
+            oldest.recycle();
+        }
+    }
+
+    public synchronized void clear() {
+
+        for (Bitmap b : order) {
+            b.recycle();
+        }
+
+        order.clear();
+        buckets.clear();
+        bytes = 0;
+    }
+
+    private static int sizeOf(Bitmap b) {
+        return b.getRowBytes() * b.getHeight();
+    }
+
+    private static long key(int width, int height, Bitmap.Config config) {
+        return ((long) width << 32) | ((long) height << 8) | config.ordinal();
+    }
+}
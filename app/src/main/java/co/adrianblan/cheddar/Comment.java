@@ -5,30 +5,41 @@ import android.os.Parcelable;
 
 // Stores individual comments
 public class Comment implements Parcelable {
-    private String by;  // Author of the comment
+    private long id; // The unique ID of the comment
+    private int by;  // Author of the comment, as a SymbolTable symbol
     private String body; // Comment text
-    private String time; // Time the comment was posted
+    private long timestamp; // Time the comment was posted, in epoch seconds
 
     private boolean hideChildren; // Whether the children of the comment are hidden
-    private boolean isHidden; // Whether the comment is hidden itself
-    private boolean toBeHidden; // Whether the comment is marked to be hidden
     private int hiddenChildren; // How many hidden children the comment has
 
     // At what level the comment should be shown
     private int hierarchy;
 
     public Comment(){
-        this.by = null;
+        this.by = SymbolTable.NONE;
         this.body = null;
         this.hideChildren = false;
     }
 
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
     public String getBy() {
+        return SymbolTable.get(by);
+    }
+
+    public int getBySymbol() {
         return by;
     }
 
     public void setBy(String by) {
-        this.by = by;
+        this.by = SymbolTable.intern(by);
     }
 
     public String getBody() {
@@ -39,12 +50,12 @@ public class Comment implements Parcelable {
         this.body = body;
     }
 
-    public String getTime() {
-        return time;
+    public long getTimestamp() {
+        return timestamp;
     }
 
-    public void setTime(String time) {
-        this.time = time;
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
     }
 
     public int getHierarchy() {
@@ -63,14 +74,6 @@ public class Comment implements Parcelable {
         this.hideChildren = hideChildren;
     }
 
-    public boolean isHidden() {
-        return isHidden;
-    }
-
-    public void setIsHidden(boolean isHidden) {
-        this.isHidden = isHidden;
-    }
-
     public int getHiddenChildren() {
         return hiddenChildren;
     }
@@ -84,32 +87,15 @@ public class Comment implements Parcelable {
         return 0;
     }
 
+    // Parcelled in the compact ItemCodec format
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeString(this.by);
-        dest.writeString(this.body);
-        dest.writeString(this.time);
-        dest.writeByte(hideChildren ? (byte) 1 : (byte) 0);
-        dest.writeByte(isHidden ? (byte) 1 : (byte) 0);
-        dest.writeByte(toBeHidden ? (byte) 1 : (byte) 0);
-        dest.writeInt(this.hiddenChildren);
-        dest.writeInt(this.hierarchy);
-    }
-
-    protected Comment(Parcel in) {
-        this.by = in.readString();
-        this.body = in.readString();
-        this.time = in.readString();
-        this.hideChildren = in.readByte() != 0;
-        this.isHidden = in.readByte() != 0;
-        this.toBeHidden = in.readByte() != 0;
-        this.hiddenChildren = in.readInt();
-        this.hierarchy = in.readInt();
+        dest.writeByteArray(ItemCodec.encode(ItemCodec.COMMENTS, this));
     }
 
     public static final Creator<Comment> CREATOR = new Creator<Comment>() {
         public Comment createFromParcel(Parcel source) {
-            return new Comment(source);
+            return ItemCodec.decode(ItemCodec.COMMENTS, source.createByteArray());
         }
 
         public Comment[] newArray(int size) {
@@ -30,8 +30,9 @@ import com.github.ksoichiro.android.observablescrollview.ScrollState;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 import static android.widget.AdapterView.*;
 
@@ -39,13 +40,12 @@ import static android.widget.AdapterView.*;
 public class CommentActivity extends AppCompatActivity implements ObservableScrollViewCallbacks {
 
     private CommentAdapter commentAdapter; // Adapter which stores comments
-    private ArrayList<Long> kids; // Stores the array of individual comment IDs
+    private long[] kids; // Stores the array of individual comment IDs
     private Date lastSubmissionUpdate; // Time since last submission update
     private Date lastOnItemLongClick; // Time since last comment hidden
 
     private FeedItem feedItem;
     private Long newCommentCount;
-    private Bitmap thumbnail;
 
     private View header;
     private View no_comments;
@@ -54,6 +54,26 @@ public class CommentActivity extends AppCompatActivity implements ObservableScro
     // Base URL for the Hacker News Firebase API
     private Firebase baseUrl;
 
+    // Local copy of the comments, shown until the network has responded
+    private ItemStore itemStore;
+    private boolean showingCached;
+
+    // Loads the comment tree level by level
+    private CommentTreeLoader commentLoader;
+    private final int commentWindowSize = 25;
+    private final int commentMaxInFlight = 8;
+
+    // Changes to the comments are told to the list at most once per frame
+    private UpdateDispatcher commentUpdates;
+
+    // Keeps the time labels of the comments on screen current
+    private TimeTicker timeTicker;
+
+    // The comments are saved there instead of in the Bundle, under this token
+    private StateStore stateStore;
+    private String stateToken;
+    private boolean restoringState;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -62,19 +82,41 @@ public class CommentActivity extends AppCompatActivity implements ObservableScro
         // Init API stuff
         Firebase.setAndroidContext(this);
         baseUrl = new Firebase("https://hacker-news.firebaseio.com/v0/item/");
+        itemStore = ItemStore.getInstance(this);
+        commentLoader = new CommentTreeLoader(baseUrl, commentWindowSize, commentMaxInFlight, new CommentTreeLoader.Listener() {
+            @Override
+            public void onLevelLoaded(IndexedCommentList comments, List<Comment> added, Map<Long, ItemSource> items, boolean done) {
+
+                // Get the html and the layouts out of the way before the rows are bound
+                CommentLayoutCache.getInstance(CommentActivity.this).prebuild(added);
+                updateCommentLevel(comments, items, done);
+            }
+        });
+
+        stateStore = StateStore.getInstance(this);
 
         if(savedInstanceState == null){
             Bundle b = getIntent().getExtras();
             feedItem = b.getParcelable("feedItem");
             commentAdapter = new CommentAdapter(feedItem, this);
+            stateToken = stateStore.newToken();
         } else {
 
-            // We retrieve the saved items
+            // We retrieve the saved items, the comments are still in memory unless the process was killed
             feedItem = savedInstanceState.getParcelable("feedItem");
-            ArrayList<Comment> comments = savedInstanceState.getParcelableArrayList("comments");
-            commentAdapter = new CommentAdapter(comments, feedItem, this);
+            stateToken = savedInstanceState.getString("commentState");
+
+            ArrayList<Comment> comments = stateStore.peek(stateToken);
+            if (comments != null) {
+                commentAdapter = new CommentAdapter(comments, feedItem, this);
+            } else {
+                commentAdapter = new CommentAdapter(feedItem, this);
+                restoringState = stateToken != null;
+            }
         }
 
+        commentUpdates = new UpdateDispatcher(commentAdapter);
+
         // Init toolbar
         Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar_comment);
         setSupportActionBar(toolbar);
@@ -86,17 +128,44 @@ public class CommentActivity extends AppCompatActivity implements ObservableScro
         lv.setScrollViewCallbacks(this);
         lv.addHeaderView(initHeader(feedItem));
         lv.setAdapter(commentAdapter);
+        commentAdapter.setListView(lv);
+        timeTicker = new TimeTicker(lv);
         addCommentOnClickListeners(lv);
 
         no_comments = findViewById(R.id.activity_comment_none);
         progress = findViewById(R.id.activity_comment_progress);
 
         // Don't get new comments if we already have retrieved saved comments
-        if(commentAdapter.getCount() == 0) {
+        if (restoringState) {
+            restoreComments();
+        } else if(commentAdapter.getCount() == 0) {
             updateComments();
+        } else {
+            progress.setVisibility(View.GONE);
         }
     }
 
+    // Reads the comments we had before the process was killed, or fetches them again if they were lost
+    private void restoreComments() {
+
+        stateStore.restore(stateToken, ItemCodec.COMMENTS, this, new StateStore.Callback<Comment>() {
+            @Override
+            public void onRestored(ArrayList<Comment> comments) {
+
+                restoringState = false;
+
+                if (comments == null || comments.isEmpty()) {
+                    updateComments();
+                    return;
+                }
+
+                commentAdapter.setComments(new IndexedCommentList(comments));
+                commentUpdates.markDataSetChanged();
+                progress.setVisibility(View.GONE);
+            }
+        });
+    }
+
     // Initializes the feed item header with data
     public View initHeader(final FeedItem feedItem){
 
@@ -115,12 +184,12 @@ public class CommentActivity extends AppCompatActivity implements ObservableScro
         comments.setText(Long.toString(feedItem.getDescendants()));
 
         TextView time = (TextView) header.findViewById(R.id.feed_item_time);
-        time.setText(feedItem.getTime());
+        time.setText(TimeFormatter.format(feedItem.getTimestamp()));
 
-        // Retrieve saved thumbnail
-        thumbnail = getIntent().getParcelableExtra("thumbnail");
+        // Retrieve the thumbnail the feed left for us
+        Bitmap thumbnail = ThumbnailRegistry.getInstance().get(feedItem.getSubmissionId());
 
-        ImageView imageView = (ImageView) header.findViewById(R.id.feed_item_thumbnail);
+        final ImageView imageView = (ImageView) header.findViewById(R.id.feed_item_thumbnail);
 
         // Use thumbnail for the feed item
         if(thumbnail != null){
@@ -138,6 +207,21 @@ public class CommentActivity extends AppCompatActivity implements ObservableScro
             }
         }
 
+        // The registry doesn't survive the process being killed, but the favicon is probably still cached
+        if (thumbnail == null && feedItem.getLongUrl() != null) {
+            FaviconCache.getInstance(this).load(feedItem.getShortUrl(), TaskScheduler.PRIORITY_VISIBLE, new FaviconCache.Callback() {
+                @Override
+                public void onFavicon(String host, Bitmap favicon) {
+
+                    // Same rule as in the feed, small icons keep their TextDrawable
+                    if (favicon != null && favicon.getWidth() > 50 && favicon.getHeight() > 50) {
+                        ThumbnailRegistry.getInstance().put(feedItem.getSubmissionId(), favicon);
+                        imageView.setImageBitmap(favicon);
+                    }
+                }
+            });
+        }
+
         // If the url doesn't go to hacker news
         if(feedItem.getLongUrl() != null){
 
@@ -150,7 +234,6 @@ public class CommentActivity extends AppCompatActivity implements ObservableScro
                     Intent intent = new Intent(v.getContext(), WebViewActivity.class);
                     Bundle bundle = new Bundle();
                     bundle.putParcelable("feedItem", feedItem);
-                    intent.putExtra("thumbnail", thumbnail);
                     intent.putExtras(bundle);
                     startActivity(intent);
                 }
@@ -170,10 +253,10 @@ public class CommentActivity extends AppCompatActivity implements ObservableScro
             TextView comment_text = (JellyBeanCompatTextView) header.findViewById(R.id.feed_item_comment_text);
             LinearLayout divider = (LinearLayout) header.findViewById(R.id.feed_item_divider);
 
-            comment_title.setText(feedItem.getBy() + " [OP]");
+            comment_title.setText(SymbolTable.opLabel(feedItem.getBySymbol()));
 
             // Helper function to do fancy formatting with the comment text
-            comment_text.setText(CommentAdapter.trimWhitespace(Html.fromHtml(feedItem.getText())));
+            comment_text.setText(SpanSanitizer.sanitize(CommentRenderer.trimWhitespace(Html.fromHtml(feedItem.getText()))));
 
             divider.setBackgroundColor(Color.parseColor("#ff6600"));
             divider.getLayoutParams().height = 3;
@@ -205,25 +288,21 @@ public class CommentActivity extends AppCompatActivity implements ObservableScro
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
 
                 // If there is no comment data, or we clicked the header, return
-                if (commentAdapter.getComments().size() == 0 || position == 0) {
+                if (commentAdapter.getCount() == 0 || position == 0) {
                     return;
                 }
 
                 Date d = new Date();
                 long ms = (d.getTime() - lastOnItemLongClick.getTime());
 
-                Comment comment = commentAdapter.getItem(position - 1);
-                int hierarchy = comment.getHierarchy();
+                int row = commentAdapter.getRow(position - 1);
 
-                if (comment.hasHideChildren() && ms > 1500) {
+                if (commentAdapter.isCollapsed(row) && ms > 1500) {
 
-                    comment.setHideChildren(false);
-                    // Find all child comments with higher hierarchy and show them
-                    for (int i = position; commentAdapter.getComments().get(i).getHierarchy() > hierarchy && i < commentAdapter.getComments().size(); i++) {
-                        commentAdapter.getItem(i).setIsHidden(false);
-                    }
+                    // Reveal the whole range of replies at once
+                    commentAdapter.setCollapsed(row, false);
+                    commentUpdates.markDataSetChanged();
                 }
-                commentAdapter.notifyDataSetChanged();
             }
         });
 
@@ -234,31 +313,18 @@ public class CommentActivity extends AppCompatActivity implements ObservableScro
             public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
 
                 // If there is no comment data, or we clicked the header, return
-                if (commentAdapter.getComments().size() == 0 || position == 0) {
+                if (commentAdapter.getCount() == 0 || position == 0) {
                     return false;
                 }
 
-                Comment comment = commentAdapter.getItem(position - 1);
-                int hierarchy = comment.getHierarchy();
+                int row = commentAdapter.getRow(position - 1);
 
-                if (!comment.hasHideChildren()) {
+                if (!commentAdapter.isCollapsed(row)) {
                     lastOnItemLongClick = new Date();
-                    int i;
-
-                    // Find all child comments with higher hierarchy and hide them
-                    // We do the direct access since we want to be able to access hidden comments
-                    for (i = position; commentAdapter.getComments().get(i).getHierarchy() > hierarchy && i < commentAdapter.getComments().size(); i++) {
-                        commentAdapter.getItem(i).setIsHidden(true);
-                    }
 
-                    int hiddenChildren = i - position;
-                    comment.setHiddenChildren(hiddenChildren);
-
-                    if (hiddenChildren > 0) {
-                        comment.setHideChildren(true);
-                    }
-
-                    commentAdapter.notifyDataSetChanged();
+                    // Hide the whole range of replies at once
+                    commentAdapter.setCollapsed(row, true);
+                    commentUpdates.markDataSetChanged();
                 }
 
                 return true;
@@ -269,6 +335,8 @@ public class CommentActivity extends AppCompatActivity implements ObservableScro
     // Starts updating the commentCount from the top level
     public void updateComments(){
 
+        boolean firstUpdate = lastSubmissionUpdate == null;
+
         if(lastSubmissionUpdate != null) {
             Date d = new Date();
             long seconds = (d.getTime() - lastSubmissionUpdate.getTime()) / 1000;
@@ -282,12 +350,19 @@ public class CommentActivity extends AppCompatActivity implements ObservableScro
         lastSubmissionUpdate = new Date();
 
         newCommentCount = 0L;
+        showingCached = false;
+        commentLoader.cancel();
         commentAdapter.clear();
-        commentAdapter.notifyDataSetChanged();
+        commentUpdates.markDataSetChanged();
 
         progress.setVisibility(View.VISIBLE);
         no_comments.setVisibility(View.GONE);
 
+        // The first time we open a thread, we show the comments we stored last time
+        if(firstUpdate) {
+            loadCachedComments();
+        }
+
         // We retrieve the comment data belonging to the feed item
         baseUrl.child(Long.toString(feedItem.getSubmissionId())).addListenerForSingleValueEvent(new ValueEventListener() {
             @Override
@@ -296,28 +371,38 @@ public class CommentActivity extends AppCompatActivity implements ObservableScro
                 // Hide the progress bar
                 progress.setVisibility(View.GONE);
 
-                // We retrieve all objects into a hashmap
-                Map<String, Object> ret = (Map<String, Object>) snapshot.getValue();
-                kids = (ArrayList<Long>) ret.get("kids");
+                ItemSource ret = SnapshotItemSource.of(snapshot);
+
+                if (ret == null) {
+                    onCancelled(null);
+                    return;
+                }
+
+                itemStore.putItem(feedItem.getSubmissionId(), ret);
+                kids = ItemDecoder.decodeKids(ret);
 
                 // Update the feed item data
-                feedItem.setTime(getPrettyDate((long) ret.get("time")));
-                feedItem.setScore((Long) ret.get("score"));
+                feedItem.setTimestamp(ret.getLong("time", 0));
+                feedItem.setScore(ret.getLong("score", feedItem.getScore()));
 
                 // If the feed item has comments
                 if (kids != null) {
 
                     no_comments.setVisibility(View.GONE);
-                    newCommentCount += kids.size();
+                    newCommentCount = (long) kids.length;
                     updateHeader();
 
-                    //TODO fix race condition
-                    for (int i = 0; i < kids.size(); i++) {
-                        updateSingleComment(kids.get(i), null);
-                    }
+                    commentLoader.load(kids);
                 } else {
                     updateHeader();
 
+                    // The thread has no comments anymore, so the cached ones are gone too
+                    if (showingCached) {
+                        showingCached = false;
+                        commentAdapter.clear();
+                        commentUpdates.markDataSetChanged();
+                    }
+
                     //If we can't load any posts, we show a warning
                     no_comments.setVisibility(View.VISIBLE);
                 }
@@ -326,75 +411,131 @@ public class CommentActivity extends AppCompatActivity implements ObservableScro
             @Override
             public void onCancelled(FirebaseError firebaseError) {
                 System.err.println("Could not retrieve post! " + firebaseError);
-                no_comments.setVisibility(View.VISIBLE);
                 progress.setVisibility(View.GONE);
+
+                // If we have cached comments we keep showing them
+                if (commentAdapter.getCount() == 0) {
+                    no_comments.setVisibility(View.VISIBLE);
+                }
             }
         });
     }
 
-    // Gets an url to a single comment
-    public void updateSingleComment(Long id, Comment parent){
+    // Reads the comment tree we stored last time, and shows it until fresh comments arrive
+    private void loadCachedComments() {
 
-        final Comment par = parent;
+        final long submissionId = feedItem.getSubmissionId();
 
-        baseUrl.child(Long.toString(id)).addListenerForSingleValueEvent(new ValueEventListener() {
-            @Override
-            public void onDataChange(DataSnapshot snapshot) {
+        class LoadCachedCommentsTask extends TaskScheduler.Task<ArrayList<Comment>> {
 
-                // We retrieve all objects into a hashmap
-                Map<String, Object> ret = (Map<String, Object>) snapshot.getValue();
-
-                if (ret == null || ret.get("text") == null) {
-                    return;
-                }
+            protected ArrayList<Comment> doInBackground() {
 
-                Comment com = new Comment();
-                com.setBy((String) ret.get("by"));
-                com.setBody((String) ret.get("text"));
-                com.setTime(getPrettyDate((Long) ret.get("time")));
+                ArrayList<Comment> cached = new ArrayList<>();
+                ItemSource root = itemStore.getItem(submissionId);
+                long[] rootKids = root != null ? ItemDecoder.decodeKids(root) : null;
 
-                // Check if top level comment
-                if (par == null) {
-                    com.setHierarchy(0);
-                    commentAdapter.add(com);
-                } else {
-                    com.setHierarchy(par.getHierarchy() + 1);
-                    commentAdapter.add(commentAdapter.getPosition(par) + 1, com);
+                if (rootKids == null) {
+                    return cached;
                 }
 
-                // If we load a comment into a collapsed chain, we must hide it
-                int position = commentAdapter.getPosition(com);
-                if(position > 0){
+                // Read the tree one level at a time, so that each level is a single query
+                Map<Long, ItemSource> items = new HashMap<>();
+                ArrayList<Long> level = new ArrayList<>();
+                addIds(rootKids, level);
 
-                    Comment aboveComment = commentAdapter.getItem(position - 1);
+                while (!level.isEmpty()) {
+                    Map<Long, ItemSource> found = itemStore.getItems(level);
+                    items.putAll(found);
 
-                    if(aboveComment.isHidden() || (aboveComment.hasHideChildren() && aboveComment.getHierarchy() > com.getHierarchy())){
-                        com.setIsHidden(true);
+                    ArrayList<Long> next = new ArrayList<>();
+                    for (ItemSource item : found.values()) {
+                        addIds(ItemDecoder.decodeKids(item), next);
                     }
+                    level = next;
                 }
 
-                commentAdapter.notifyDataSetChanged();
-                ArrayList<Long> kids = (ArrayList<Long>) ret.get("kids");
+                flattenCachedComments(rootKids, 0, items, cached);
 
-                // Update child commentCount
-                if (kids != null) {
+                // We are already in the background, so we might as well render them here
+                CommentLayoutCache.getInstance(CommentActivity.this).buildAll(cached);
 
-                    newCommentCount += kids.size();
-                    updateHeader();
+                return cached;
+            }
 
-                    // We're counting backwards since we are too lazy to fix a race condition
-                    //TODO fix race condition
-                    for (int i = 1; i <= kids.size(); i++) {
-                        updateSingleComment(kids.get(kids.size() - i), com);
-                    }
+            protected void onPostExecute(ArrayList<Comment> cached) {
+
+                // The network beat us to it, or there was nothing stored
+                if (cached.isEmpty() || commentAdapter.getCount() > 0 || no_comments.getVisibility() == View.VISIBLE) {
+                    return;
                 }
+
+                showingCached = true;
+                for (Comment c : cached) {
+                    commentAdapter.add(c);
+                }
+                commentUpdates.markDataSetChanged();
+
+                progress.setVisibility(View.GONE);
+                no_comments.setVisibility(View.GONE);
             }
+        }
 
-            @Override
-            public void onCancelled(FirebaseError firebaseError) {
-                System.err.println("Could not retrieve post! " + firebaseError);
+        TaskScheduler.getInstance().submit(TaskScheduler.Lane.DECODE, TaskScheduler.PRIORITY_VISIBLE, this, new LoadCachedCommentsTask());
+    }
+
+    // Adds the cached comments in the same order as they are shown, parents before their children
+    private void flattenCachedComments(long[] ids, int hierarchy, Map<Long, ItemSource> items, ArrayList<Comment> out) {
+
+        for (long id : ids) {
+            ItemSource ret = items.get(id);
+            Comment com = ret != null ? ItemDecoder.decodeComment(id, ret) : null;
+
+            if (com == null) {
+                continue;
             }
-        });
+
+            com.setHierarchy(hierarchy);
+            out.add(com);
+
+            long[] kids = ItemDecoder.decodeKids(ret);
+            if (kids != null) {
+                flattenCachedComments(kids, hierarchy + 1, items, out);
+            }
+        }
+    }
+
+    private static void addIds(long[] ids, List<Long> out) {
+        if (ids != null) {
+            for (long id : ids) {
+                out.add(id);
+            }
+        }
+    }
+
+    // Receives every comment loaded so far, each time a level of the tree is complete
+    public void updateCommentLevel(IndexedCommentList comments, Map<Long, ItemSource> items, boolean done) {
+
+        itemStore.putItems(items);
+
+        // Keep showing the cached thread until the fresh one has caught up with it
+        if (showingCached && !done && comments.size() < commentAdapter.getCount()) {
+            return;
+        }
+
+        // The loader inserts into the same list every level, so we only have to hand it over once
+        if (commentAdapter.getComments() != comments) {
+            showingCached = false;
+            commentAdapter.setComments(comments);
+        }
+        commentUpdates.markDataSetChanged();
+
+        newCommentCount = Math.max(newCommentCount, comments.size());
+        updateHeader();
+
+        // Every comment in the thread has been deleted
+        if (done && comments.isEmpty()) {
+            no_comments.setVisibility(View.VISIBLE);
+        }
     }
 
     // Updates the header with new data
@@ -410,25 +551,7 @@ public class CommentActivity extends AppCompatActivity implements ObservableScro
         }
 
         TextView timeView = (TextView) header.findViewById(R.id.feed_item_time);
-        timeView.setText(feedItem.getTime());
-    }
-
-    // Converts the difference between two dates into a pretty date
-    // There's probably a joke in there somewhere
-    public String getPrettyDate(Long time){
-
-        Date past = new Date(time * 1000);
-        Date now = new Date();
-
-        if(TimeUnit.MILLISECONDS.toDays(now.getTime() - past.getTime()) > 0){
-            return TimeUnit.MILLISECONDS.toDays(now.getTime() - past.getTime()) + "d";
-        } else if(TimeUnit.MILLISECONDS.toHours(now.getTime() - past.getTime()) > 0){
-            return TimeUnit.MILLISECONDS.toHours(now.getTime() - past.getTime()) + "h";
-        } if(TimeUnit.MILLISECONDS.toMinutes(now.getTime() - past.getTime()) > 0){
-            return TimeUnit.MILLISECONDS.toMinutes(now.getTime() - past.getTime()) + "m";
-        } else {
-            return TimeUnit.MILLISECONDS.toSeconds(now.getTime() - past.getTime()) + "s";
-        }
+        timeView.setText(TimeFormatter.format(feedItem.getTimestamp()));
     }
 
     @Override
@@ -464,7 +587,6 @@ public class CommentActivity extends AppCompatActivity implements ObservableScro
             Intent intent = new Intent(this, WebViewActivity.class);
             Bundle b = new Bundle();
             b.putParcelable("feedItem", feedItem);
-            intent.putExtra("thumbnail", thumbnail);
             intent.putExtras(b);
             startActivity(intent);
         }
@@ -504,12 +626,39 @@ public class CommentActivity extends AppCompatActivity implements ObservableScro
         }
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        timeTicker.start();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        timeTicker.stop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        commentLoader.cancel();
+        commentUpdates.cancel();
+        TaskScheduler.getInstance().cancelAll(this);
+
+        if (isFinishing()) {
+            stateStore.discard(stateToken);
+        }
+    }
+
     @Override
     public void onSaveInstanceState(Bundle savedInstanceState) {
         super.onSaveInstanceState(savedInstanceState);
 
-        // Save data
+        // Save data, the comments go to the state store and only their token goes in the Bundle
         savedInstanceState.putParcelable("feedItem", feedItem);
-        savedInstanceState.putParcelableArrayList("comments", commentAdapter.getComments());
+        if (!restoringState) {
+            stateStore.save(stateToken, ItemCodec.COMMENTS, commentAdapter.getComments().toArrayList());
+        }
+        savedInstanceState.putString("commentState", stateToken);
     }
 }
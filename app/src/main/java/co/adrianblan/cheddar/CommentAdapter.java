@@ -1,21 +1,10 @@
 package co.adrianblan.cheddar;
 
 import android.content.Context;
-import android.content.DialogInterface;
-import android.content.Intent;
-import android.os.Bundle;
-import android.support.v7.app.AlertDialog;
-import android.text.Html;
-import android.text.SpannableStringBuilder;
-import android.text.Spanned;
-import android.text.style.ClickableSpan;
-import android.text.style.RelativeSizeSpan;
-import android.text.style.URLSpan;
 import android.util.DisplayMetrics;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
@@ -26,70 +15,95 @@ import java.util.ArrayList;
 /**
  * Created by Adrian on 2015-07-30.
  */
-public class CommentAdapter extends BaseAdapter {
+public class CommentAdapter extends RowAdapter implements TimeTicker.Rows {
 
-    private ArrayList<Comment> comments;
+    private IndexedCommentList comments;
     private ArrayList<Integer> colors;
     private final Context context;
     private FeedItem feedItem; // Feed item which is the parent of all comments
+    private final CommentRenderer renderer;
 
     // Constructor which creates new arraylist
     public CommentAdapter(FeedItem fi, Context c) {
         colors = null;
-        comments = new ArrayList<>();
+        comments = new IndexedCommentList();
         context = c;
         feedItem = fi;
+        renderer = CommentRenderer.getInstance();
     }
 
     // Constructor which copies arraylist
     public CommentAdapter(ArrayList<Comment> comments, FeedItem fi, Context c) {
         colors = null;
-        this.comments = comments;
+        this.comments = new IndexedCommentList(comments);
         context = c;
         feedItem = fi;
+        renderer = CommentRenderer.getInstance();
     }
 
     public void add (Comment c){
         comments.add(c);
     }
 
-    public void add (int i, Comment c){
-        comments.add(i, c);
-    }
-
     public void clear() {
         comments.clear();
     }
 
-    public int getPosition(Comment c) {
+    // Replaces all comments at once
+    public void setComments(IndexedCommentList comments) {
+        this.comments = comments;
+    }
 
-        for(int i = 0; i < getCount(); i++) {
-            if(comments.get(i).equals(c)){
-                return i;
-            }
-        }
+    // Returns the row of the visible comment at the position, see CommentColumns
+    public int getRow(int position) {
+        return comments.getVisibleRow(position);
+    }
+
+    // Whether the replies to the comment in the row are hidden
+    public boolean isCollapsed(int row) {
+        return comments.getColumns().isCollapsed(row);
+    }
 
-        return -1;
+    // Collapses or expands the replies to a visible comment
+    public void setCollapsed(int row, boolean collapsed) {
+
+        int hidden = comments.setCollapsed(comments.indexOf(row), collapsed);
+
+        CommentColumns columns = comments.getColumns();
+        columns.setCollapsed(row, collapsed && hidden > 0);
+        columns.setHiddenChildren(row, collapsed ? hidden : 0);
     }
 
-    public ArrayList<Comment> getComments(){
+    public IndexedCommentList getComments(){
         return comments;
     }
 
 
+    // Hidden comments are left out entirely
     @Override
     public int getCount() {
-        return comments.size();
+        return comments.visibleSize();
     }
 
+    // Builds a copy of the comment, rows are bound straight from the columns instead
     @Override
     public Comment getItem(int position) {
-        return comments.get(position);
+        return comments.getColumns().toComment(comments.getVisibleRow(position));
     }
 
     @Override
     public long getItemId(int position) {
-        return 0;
+        return comments.getColumns().getId(comments.getVisibleRow(position));
+    }
+
+    @Override
+    public long getTimestamp(int position) {
+        return comments.getColumns().getTimestamp(comments.getVisibleRow(position));
+    }
+
+    @Override
+    public TextView getTimeView(View row) {
+        return (TextView) row.findViewById(R.id.comment_time);
     }
 
     @Override
@@ -97,7 +111,7 @@ public class CommentAdapter extends BaseAdapter {
 
         class ViewHolder {
             RobotoTextView title;
-            TextView body;
+            CommentTextView body;
             TextView time;
             LinearLayout container;
             LinearLayout text_container;
@@ -110,23 +124,21 @@ public class CommentAdapter extends BaseAdapter {
             colors = initColors(parent.getContext());
         }
 
-        final Comment com = comments.get(position);
-
-        if(com.isHidden()){
-            // Inflate and return an empty layout
-            return new View(context);
-        }
+        CommentColumns columns = comments.getColumns();
+        int row = comments.getVisibleRow(position);
+        int hierarchy = columns.getHierarchy(row);
+        boolean collapsed = columns.isCollapsed(row);
 
         ViewHolder holder;
 
-        if(convertView == null || convertView.getTag() == null) {
+        if(convertView == null) {
 
             holder = new ViewHolder();
 
             LayoutInflater inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
             convertView = inflater.inflate(R.layout.comment, parent, false);
             holder.title = (RobotoTextView) convertView.findViewById(R.id.comment_title);
-            holder.body = (JellyBeanCompatTextView) convertView.findViewById(R.id.comment_body);
+            holder.body = (CommentTextView) convertView.findViewById(R.id.comment_body);
             holder.time = (TextView) convertView.findViewById(R.id.comment_time);
             holder.container = (LinearLayout) convertView.findViewById(R.id.comment);
             holder.text_container = (LinearLayout) convertView.findViewById(R.id.comment_text_container);
@@ -141,36 +153,34 @@ public class CommentAdapter extends BaseAdapter {
             holder = (ViewHolder) convertView.getTag();
         }
 
-        holder.title.setText(com.getBy());
+        int by = columns.getAuthor(row);
 
         // If the author of the feed item is also the author of the comment
-        if(com.getBy().equals(feedItem.getBy())){
+        if(by != SymbolTable.NONE && by == feedItem.getBySymbol()){
             holder.title.setTextColor(context.getResources().getColor(R.color.colorPrimary));
-            holder.title.setText(holder.title.getText() + " [OP]");
+            holder.title.setText(SymbolTable.opLabel(by));
         } else {
             holder.title.setTextColor(context.getResources().getColor(R.color.abc_secondary_text_material_light));
+            holder.title.setText(SymbolTable.get(by));
         }
 
         // If the comment exists
-        if(com.getBody() != null && !com.hasHideChildren()) {
+        if(columns.hasBody(row) && !collapsed) {
             holder.body.setVisibility(View.VISIBLE);
 
-            // We can't show the text as is, but have to parse it as html
-            setTextViewHTML(holder.body, com.getBody());
-
-            //This link movement method only consumes on URL clicks
-            holder.body.setMovementMethod(TextViewFixTouchConsume.LocalLinkMovementMethod.getInstance());
+            // The html has usually been rendered and laid out in the background already
+            holder.body.setComment(columns.getId(row), hierarchy, renderer.render(columns, row));
         } else {
             holder.body.setVisibility(View.GONE);
         }
 
-        holder.time.setText(com.getTime());
+        holder.time.setText(TimeFormatter.format(columns.getTimestamp(row)));
 
         // Adds padding based on hierarchy, and adds hierarchy indicator
-        holder.indicator.setPadding((int) dpToPixels(4, parent.getContext()) * (com.getHierarchy() - 1), 0, 0, 0);
+        holder.indicator.setPadding((int) dpToPixels(4, parent.getContext()) * (hierarchy - 1), 0, 0, 0);
 
         // We don't need the indicator for top level commentCount
-        if(com.getHierarchy() == 0){
+        if(hierarchy == 0){
             holder.indicator.setVisibility(View.GONE);
             holder.indicator_color.setVisibility(View.GONE);
         } else {
@@ -178,12 +188,12 @@ public class CommentAdapter extends BaseAdapter {
             holder.indicator_color.setVisibility(View.VISIBLE);
 
             // Use modulo to get the appropriate color for indicator
-            int color = colors.get((com.getHierarchy() - 1) % colors.size());
+            int color = colors.get((hierarchy - 1) % colors.size());
             holder.indicator_color.setBackgroundColor(color);
         }
 
-        if(com.hasHideChildren()){
-            holder.hidden_children.setText("+" + Integer.toString(com.getHiddenChildren()));
+        if(collapsed){
+            holder.hidden_children.setText("+" + Integer.toString(columns.getHiddenChildren(row)));
             holder.hidden_children.setVisibility(View.VISIBLE);
         } else {
             holder.hidden_children.setVisibility(View.GONE);
@@ -209,75 +219,4 @@ public class CommentAdapter extends BaseAdapter {
         DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
         return Math.round(dp * (displayMetrics.xdpi / DisplayMetrics.DENSITY_DEFAULT));
     }
-
-    // Removes trailing double whitespace, reduces the size of other double whitespace
-    public static SpannableStringBuilder trimWhitespace(CharSequence source) {
-
-        int i = source.length();
-
-        // loop back to the first non-whitespace character
-        while(--i >= 0 && Character.isWhitespace(source.charAt(i))) {
-        }
-
-        // Removes two trailing newlines
-        source = source.subSequence(0, i + 1);
-
-        SpannableStringBuilder ssb = new SpannableStringBuilder(source);
-
-        for(i = 0; i + 1 < source.length(); i++){
-            if(Character.isWhitespace(source.charAt(i)) && Character.isWhitespace(source.charAt(i + 1))) {
-
-                // Reduces the size of double whitespace
-                ssb.setSpan(new RelativeSizeSpan(0.4f), i, i + 2, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-                i++;
-            }
-        }
-        return ssb;
-    }
-
-    protected void makeLinkClickable(SpannableStringBuilder strBuilder, final URLSpan span)
-    {
-        int start = strBuilder.getSpanStart(span);
-        int end = strBuilder.getSpanEnd(span);
-        int flags = strBuilder.getSpanFlags(span);
-        ClickableSpan clickable = new ClickableSpan() {
-            public void onClick(View view) {
-
-                final View v = view;
-
-                // We show a dialog if the user wants to open the link
-                new AlertDialog.Builder(context)
-                        .setTitle("Open Link")
-                        .setMessage(span.getURL())
-                        .setPositiveButton("Open", new DialogInterface.OnClickListener() {
-                            public void onClick(DialogInterface dialog, int id) {
-                                // If we click links, we go to the webview
-                                System.out.println("Clicked: " + span.getURL());
-                                Intent intent = new Intent(v.getContext(), WebViewActivity.class);
-                                Bundle bundle = new Bundle();
-                                bundle.putString("url", span.getURL());
-                                intent.putExtras(bundle);
-                                context.startActivity(intent);
-                            }
-                        })
-                        .setNegativeButton("Cancel", null)
-                        .show();
-            }
-        };
-        strBuilder.setSpan(clickable, start, end, flags);
-        strBuilder.removeSpan(span);
-    }
-
-    // Works some magic with converting the html to a proper text view
-    protected void setTextViewHTML(TextView text, String html) {
-        CharSequence sequence = Html.fromHtml(html);
-        SpannableStringBuilder strBuilder = new SpannableStringBuilder(sequence);
-        URLSpan[] urls = strBuilder.getSpans(0, sequence.length(), URLSpan.class);
-        for(URLSpan span : urls) {
-            makeLinkClickable(strBuilder, span);
-        }
-
-        // In the end we trim the whitespace
-        text.setText(trimWhitespace(strBuilder));
-    }
 }
@@ -0,0 +1,187 @@
+package co.adrianblan.cheddar;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+// Stores the comments of a thread in parallel arrays, one row per comment, instead of one object per comment
+// A long thread is then a handful of arrays, and the bodies share a single UTF-8 buffer which is half the size of the strings
+// Rows are only ever appended, their order on screen is kept by IndexedCommentList
+// Comment is still used to move comments in and out, such as when decoding or saving them
+// Not thread safe, it's only touched on the main thread
+public class CommentColumns {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private int size;
+
+    private long[] ids;
+    private long[] times;
+    private int[] depths;
+    private int[] authors; // SymbolTable symbols
+    private int[] hiddenChildren;
+
+    // One bit per row, set if the replies to the comment are hidden
+    private long[] collapsed;
+
+    // Where the body of each row starts in the shared buffer, and how long it is, or -1 if there is no body
+    private int[] bodyStarts;
+    private int[] bodyLengths;
+    private int[] bodyHashes; // String.hashCode() of the body, so caches can tell if it has changed without decoding it
+    private byte[] bodies;
+    private int bodiesSize;
+
+    public CommentColumns() {
+        this(16);
+    }
+
+    public CommentColumns(int capacity) {
+        capacity = Math.max(1, capacity);
+
+        ids = new long[capacity];
+        times = new long[capacity];
+        depths = new int[capacity];
+        authors = new int[capacity];
+        hiddenChildren = new int[capacity];
+        collapsed = new long[(capacity + 63) / 64];
+        bodyStarts = new int[capacity];
+        bodyLengths = new int[capacity];
+        bodyHashes = new int[capacity];
+
+        // Comments are a few hundred bytes on average
+        bodies = new byte[capacity * 256];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Appends the comment and returns its row
+    public int add(Comment c) {
+
+        if (size == ids.length) {
+            grow();
+        }
+
+        int row = size++;
+
+        ids[row] = c.getId();
+        times[row] = c.getTimestamp();
+        depths[row] = c.getHierarchy();
+        authors[row] = c.getBySymbol();
+        hiddenChildren[row] = c.getHiddenChildren();
+        setCollapsed(row, c.hasHideChildren());
+        setBody(row, c.getBody());
+
+        return row;
+    }
+
+    public long getId(int row) {
+        return ids[row];
+    }
+
+    public long getTimestamp(int row) {
+        return times[row];
+    }
+
+    public int getHierarchy(int row) {
+        return depths[row];
+    }
+
+    public int getAuthor(int row) {
+        return authors[row];
+    }
+
+    public boolean hasBody(int row) {
+        return bodyLengths[row] >= 0;
+    }
+
+    public int getBodyHash(int row) {
+        return bodyHashes[row];
+    }
+
+    // Decodes the body of the row into a new string, so it's best left to the renderer which caches the result
+    public String getBody(int row) {
+        int length = bodyLengths[row];
+        return length >= 0 ? new String(bodies, bodyStarts[row], length, UTF_8) : null;
+    }
+
+    // Whether the replies to the comment are hidden
+    public boolean isCollapsed(int row) {
+        return (collapsed[row >>> 6] & (1L << row)) != 0;
+    }
+
+    public void setCollapsed(int row, boolean hidden) {
+        if (hidden) {
+            collapsed[row >>> 6] |= 1L << row;
+        } else {
+            collapsed[row >>> 6] &= ~(1L << row);
+        }
+    }
+
+    public int getHiddenChildren(int row) {
+        return hiddenChildren[row];
+    }
+
+    public void setHiddenChildren(int row, int count) {
+        hiddenChildren[row] = count;
+    }
+
+    // Builds a standalone copy of the row, such as for saving it
+    public Comment toComment(int row) {
+
+        Comment c = new Comment();
+        c.setId(ids[row]);
+        c.setTimestamp(times[row]);
+        c.setHierarchy(depths[row]);
+        c.setBy(SymbolTable.get(authors[row]));
+        c.setBody(getBody(row));
+        c.setHideChildren(isCollapsed(row));
+        c.setHiddenChildren(hiddenChildren[row]);
+
+        return c;
+    }
+
+    public void clear() {
+        size = 0;
+        bodiesSize = 0;
+        Arrays.fill(collapsed, 0);
+    }
+
+    private void setBody(int row, String body) {
+
+        if (body == null) {
+            bodyStarts[row] = bodiesSize;
+            bodyLengths[row] = -1;
+            bodyHashes[row] = 0;
+            return;
+        }
+
+        bodyHashes[row] = body.hashCode();
+
+        byte[] bytes = body.getBytes(UTF_8);
+
+        if (bodiesSize + bytes.length > bodies.length) {
+            bodies = Arrays.copyOf(bodies, Math.max(bodies.length * 2, bodiesSize + bytes.length));
+        }
+
+        System.arraycopy(bytes, 0, bodies, bodiesSize, bytes.length);
+        bodyStarts[row] = bodiesSize;
+        bodyLengths[row] = bytes.length;
+        bodiesSize += bytes.length;
+    }
+
+    private void grow() {
+
+        int capacity = ids.length * 2;
+
+        ids = Arrays.copyOf(ids, capacity);
+        times = Arrays.copyOf(times, capacity);
+        depths = Arrays.copyOf(depths, capacity);
+        authors = Arrays.copyOf(authors, capacity);
+        hiddenChildren = Arrays.copyOf(hiddenChildren, capacity);
+        collapsed = Arrays.copyOf(collapsed, (capacity + 63) / 64);
+        bodyStarts = Arrays.copyOf(bodyStarts, capacity);
+        bodyLengths = Arrays.copyOf(bodyLengths, capacity);
+        bodyHashes = Arrays.copyOf(bodyHashes, capacity);
+    }
+}
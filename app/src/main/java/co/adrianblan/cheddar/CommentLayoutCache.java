@@ -0,0 +1,182 @@
+package co.adrianblan.cheddar;
+
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.text.Layout;
+import android.text.Spanned;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.util.LruCache;
+import android.util.SparseIntArray;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+// Keeps the laid out text of comments, so that rows don't have to measure their text again when they are rebound
+// The width of the text only depends on the depth of the comment, which we learn from the first row at each depth
+// Once we know it, layouts for new comments are built in the background before they are shown
+// Everything is thrown away when the text size, the widths or the configuration change
+// A layout is only reused for the same text it was built from, so edited comments are laid out again
+public class CommentLayoutCache {
+
+    // Roughly a thousand long comments
+    private static final int MAX_CHARS = 512 * 1024;
+
+    private static final String TAG = CommentLayoutCache.class.getSimpleName();
+
+    private static CommentLayoutCache instance;
+
+    private static class Entry {
+        // The text we were given, the layout may have a plain copy of it if the spans broke it
+        final CharSequence source;
+        final Layout layout;
+
+        Entry(CharSequence source, Layout layout) {
+            this.source = source;
+            this.layout = layout;
+        }
+    }
+
+    private final LruCache<Long, Entry> layouts;
+    private final CommentRenderer renderer;
+
+    // Text width by comment hierarchy, and the paint used for all comments
+    private final SparseIntArray widths;
+    private TextPaint paint;
+
+    public static synchronized CommentLayoutCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new CommentLayoutCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private CommentLayoutCache(Context context) {
+        renderer = CommentRenderer.getInstance();
+        widths = new SparseIntArray();
+
+        layouts = new LruCache<Long, Entry>(MAX_CHARS) {
+            @Override
+            protected int sizeOf(Long id, Entry entry) {
+                return Math.max(1, entry.layout.getText().length());
+            }
+        };
+
+        // Rotation and font scale change both the widths and the text size
+        context.registerComponentCallbacks(new ComponentCallbacks() {
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                invalidate();
+            }
+
+            @Override
+            public void onLowMemory() {
+                layouts.evictAll();
+            }
+        });
+    }
+
+    // Sets the paint which comments are drawn with, throwing away all layouts if it has changed
+    public synchronized void setPaint(TextPaint p) {
+
+        if (paint != null && paint.getTextSize() == p.getTextSize() && paint.getColor() == p.getColor()
+                && paint.linkColor == p.linkColor && paint.getTypeface() == p.getTypeface()) {
+            return;
+        }
+
+        paint = new TextPaint(p);
+        layouts.evictAll();
+    }
+
+    // Remembers the width of the text for comments at the given hierarchy
+    public synchronized void setWidth(int hierarchy, int width) {
+        widths.put(hierarchy, width);
+    }
+
+    public synchronized void invalidate() {
+        widths.clear();
+        layouts.evictAll();
+    }
+
+    // Returns the layout of a comment at the given width, building it right away if we don't have it
+    public Layout get(long id, CharSequence text, int width) {
+
+        Entry entry = layouts.get(id);
+
+        if (entry == null || entry.source != text || entry.layout.getWidth() != width) {
+            TextPaint p;
+            synchronized (this) {
+                p = paint;
+            }
+
+            entry = new Entry(text, build(text, width, p));
+            layouts.put(id, entry);
+        }
+
+        return entry.layout;
+    }
+
+    // Renders and lays out the comments on a background thread
+    public void prebuild(Collection<Comment> comments) {
+
+        final ArrayList<Comment> pending = new ArrayList<>(comments);
+
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        // Rows which are on screen are measured on the main thread anyway, so this can wait behind other work
+        TaskScheduler.getInstance().submit(TaskScheduler.Lane.CPU, TaskScheduler.PRIORITY_PREFETCH, null, new TaskScheduler.Task<Void>() {
+            protected Void doInBackground() {
+                buildAll(pending);
+                return null;
+            }
+        });
+    }
+
+    // Renders and lays out the comments right away, must not be called on the main thread
+    public void buildAll(Collection<Comment> comments) {
+
+        for (Comment c : comments) {
+
+            if (c.getBody() == null) {
+                continue;
+            }
+
+            Spanned text = renderer.render(c);
+
+            int width;
+            TextPaint p;
+            synchronized (this) {
+                width = widths.get(c.getHierarchy());
+                p = paint;
+            }
+
+            // We don't know how wide the comment will be yet
+            if (width <= 0 || p == null) {
+                continue;
+            }
+
+            Entry entry = layouts.get(c.getId());
+            if (entry == null || entry.source != text || entry.layout.getWidth() != width) {
+                layouts.put(c.getId(), new Entry(text, build(text, width, p)));
+            }
+        }
+    }
+
+    // Each layout gets its own copy of the paint, since they may be built on different threads
+    private static Layout build(CharSequence text, int width, TextPaint paint) {
+
+        TextPaint p = new TextPaint(paint);
+
+        try {
+            return new StaticLayout(text, p, width, Layout.Alignment.ALIGN_NORMAL, 1f, 0f, true);
+        } catch (IndexOutOfBoundsException e) {
+
+            // The text should have been sanitized, but some spans may still break the layout on Jelly Bean
+            SpanSanitizer.reportFallback(TAG);
+            return new StaticLayout(text.toString(), p, width, Layout.Alignment.ALIGN_NORMAL, 1f, 0f, true);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package co.adrianblan.cheddar;
+
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.os.Bundle;
+import android.support.v7.app.AlertDialog;
+import android.text.Html;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.ClickableSpan;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.URLSpan;
+import android.util.LruCache;
+import android.view.View;
+
+// Turns the html of comments into the text we show, and keeps the results around
+// CommentLayoutCache renders comments in the background as soon as they arrive, so binding a row is just a lookup
+// The cache is keyed by comment ID and bounded by the total length of the text
+// Comments can be edited or deleted after we have shown them, so every entry remembers which body it was rendered from
+public class CommentRenderer {
+
+    // Roughly a thousand long comments
+    private static final int MAX_CHARS = 512 * 1024;
+
+    private static CommentRenderer instance;
+
+    private static class Entry {
+        final int bodyHash;
+        final Spanned text;
+
+        Entry(int bodyHash, Spanned text) {
+            this.bodyHash = bodyHash;
+            this.text = text;
+        }
+    }
+
+    private final LruCache<Long, Entry> cache;
+
+    public static synchronized CommentRenderer getInstance() {
+        if (instance == null) {
+            instance = new CommentRenderer();
+        }
+        return instance;
+    }
+
+    private CommentRenderer() {
+        cache = new LruCache<Long, Entry>(MAX_CHARS) {
+            @Override
+            protected int sizeOf(Long id, Entry entry) {
+                return Math.max(1, entry.text.length());
+            }
+        };
+    }
+
+    // Returns the rendered text of the comment, rendering it right away if it isn't cached
+    // Safe to call from any thread
+    public Spanned render(Comment c) {
+
+        int hash = c.getBody().hashCode();
+        Entry entry = cache.get(c.getId());
+
+        if (entry == null || entry.bodyHash != hash) {
+            entry = new Entry(hash, render(c.getBody()));
+            cache.put(c.getId(), entry);
+        }
+
+        return entry.text;
+    }
+
+    // Same as above for a row of a comment thread, the body is only decoded if it isn't cached
+    public Spanned render(CommentColumns columns, int row) {
+
+        long id = columns.getId(row);
+        int hash = columns.getBodyHash(row);
+        Entry entry = cache.get(id);
+
+        if (entry == null || entry.bodyHash != hash) {
+            entry = new Entry(hash, render(columns.getBody(row)));
+            cache.put(id, entry);
+        }
+
+        return entry.text;
+    }
+
+    // Works some magic with converting the html to a proper text view
+    public static Spanned render(String html) {
+
+        CharSequence sequence = Html.fromHtml(html);
+        SpannableStringBuilder strBuilder = new SpannableStringBuilder(sequence);
+        URLSpan[] urls = strBuilder.getSpans(0, sequence.length(), URLSpan.class);
+        for (URLSpan span : urls) {
+            makeLinkClickable(strBuilder, span);
+        }
+
+        // In the end we trim the whitespace, and make sure that Jelly Bean can measure it
+        return SpanSanitizer.sanitize(trimWhitespace(strBuilder));
+    }
+
+    // Removes trailing double whitespace, reduces the size of other double whitespace
+    public static SpannableStringBuilder trimWhitespace(CharSequence source) {
+
+        int i = source.length();
+
+        // loop back to the first non-whitespace character
+        while (--i >= 0 && Character.isWhitespace(source.charAt(i))) {
+        }
+
+        // Removes two trailing newlines
+        source = source.subSequence(0, i + 1);
+
+        SpannableStringBuilder ssb = new SpannableStringBuilder(source);
+
+        for (i = 0; i + 1 < source.length(); i++) {
+            if (Character.isWhitespace(source.charAt(i)) && Character.isWhitespace(source.charAt(i + 1))) {
+
+                // Reduces the size of double whitespace
+                ssb.setSpan(new RelativeSizeSpan(0.4f), i, i + 2, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                i++;
+            }
+        }
+        return ssb;
+    }
+
+    // The text is shared between activities, so the links find their context through the view they are clicked in
+    private static void makeLinkClickable(SpannableStringBuilder strBuilder, final URLSpan span) {
+        int start = strBuilder.getSpanStart(span);
+        int end = strBuilder.getSpanEnd(span);
+        int flags = strBuilder.getSpanFlags(span);
+        ClickableSpan clickable = new ClickableSpan() {
+            public void onClick(View view) {
+
+                final View v = view;
+
+                // We show a dialog if the user wants to open the link
+                new AlertDialog.Builder(v.getContext())
+                        .setTitle("Open Link")
+                        .setMessage(span.getURL())
+                        .setPositiveButton("Open", new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int id) {
+                                // If we click links, we go to the webview
+                                Intent intent = new Intent(v.getContext(), WebViewActivity.class);
+                                Bundle bundle = new Bundle();
+                                bundle.putString("url", span.getURL());
+                                intent.putExtras(bundle);
+                                v.getContext().startActivity(intent);
+                            }
+                        })
+                        .setNegativeButton("Cancel", null)
+                        .show();
+            }
+        };
+        strBuilder.setSpan(clickable, start, end, flags);
+        strBuilder.removeSpan(span);
+    }
+}
@@ -0,0 +1,196 @@
+package co.adrianblan.cheddar;
+
+import android.content.Context;
+import android.content.res.ColorStateList;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.text.Layout;
+import android.text.Spanned;
+import android.text.TextPaint;
+import android.text.style.ClickableSpan;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+import android.widget.TextView;
+
+// Draws the text of a comment from a layout in the CommentLayoutCache, instead of measuring it like a TextView
+// Touches are only consumed when they hit a link, so that the row can still be clicked to collapse it
+// Screen readers get the text as if this were a TextView, since there are no child views for them to read
+public class CommentTextView extends View {
+
+    // Must be sorted, since they are looked up with obtainStyledAttributes
+    private static final int[] ATTRS = {android.R.attr.textSize, android.R.attr.textColor, android.R.attr.textColorLink};
+
+    private final TextPaint paint;
+    private final CommentLayoutCache layoutCache;
+
+    // The comment we show, or -1 if there is none
+    private long commentId = -1;
+    private int hierarchy;
+    private Spanned text;
+    private Layout layout;
+
+    // The link which was pressed, if any
+    private ClickableSpan pressedLink;
+
+    public CommentTextView(Context context) {
+        this(context, null);
+    }
+
+    public CommentTextView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public CommentTextView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+
+        paint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+        paint.density = getResources().getDisplayMetrics().density;
+
+        TypedArray a = context.obtainStyledAttributes(attrs, ATTRS, defStyle, 0);
+
+        float defaultSize = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 14, getResources().getDisplayMetrics());
+        paint.setTextSize(a.getDimension(0, defaultSize));
+
+        ColorStateList color = a.getColorStateList(1);
+        paint.setColor(color != null ? color.getDefaultColor() : 0xde000000);
+
+        ColorStateList link = a.getColorStateList(2);
+        paint.linkColor = link != null ? link.getDefaultColor() : getResources().getColor(R.color.colorPrimary);
+
+        a.recycle();
+
+        layoutCache = CommentLayoutCache.getInstance(context);
+        layoutCache.setPaint(paint);
+    }
+
+    // Shows the rendered text of a comment
+    public void setComment(long id, int hierarchy, Spanned text) {
+
+        if (id == commentId && hierarchy == this.hierarchy && text == this.text) {
+            return;
+        }
+
+        commentId = id;
+        this.hierarchy = hierarchy;
+        this.text = text;
+        layout = null;
+        pressedLink = null;
+
+        requestLayout();
+        invalidate();
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+
+        int width = MeasureSpec.getSize(widthMeasureSpec);
+        int textWidth = width - getPaddingLeft() - getPaddingRight();
+
+        if (commentId < 0 || textWidth <= 0) {
+            layout = null;
+            setMeasuredDimension(width, resolveSize(getPaddingTop() + getPaddingBottom(), heightMeasureSpec));
+            return;
+        }
+
+        // Every comment at this depth will be this wide, so the next ones can be laid out in advance
+        layoutCache.setWidth(hierarchy, textWidth);
+        layout = layoutCache.get(commentId, text, textWidth);
+
+        int height = layout.getHeight() + getPaddingTop() + getPaddingBottom();
+        setMeasuredDimension(width, resolveSize(height, heightMeasureSpec));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+
+        if (layout == null) {
+            return;
+        }
+
+        canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        layout.draw(canvas);
+        canvas.restore();
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+
+        switch (event.getAction()) {
+            case MotionEvent.ACTION_DOWN:
+                pressedLink = findLink(event);
+                return pressedLink != null;
+
+            case MotionEvent.ACTION_MOVE:
+                return pressedLink != null;
+
+            case MotionEvent.ACTION_UP:
+                ClickableSpan link = pressedLink;
+                pressedLink = null;
+
+                if (link != null && link == findLink(event)) {
+                    link.onClick(this);
+                }
+                return link != null;
+
+            case MotionEvent.ACTION_CANCEL:
+                pressedLink = null;
+                return false;
+        }
+
+        return false;
+    }
+
+    @Override
+    public void onPopulateAccessibilityEvent(AccessibilityEvent event) {
+        super.onPopulateAccessibilityEvent(event);
+
+        if (text != null && text.length() > 0) {
+            event.getText().add(text);
+        }
+    }
+
+    @Override
+    public void onInitializeAccessibilityEvent(AccessibilityEvent event) {
+        super.onInitializeAccessibilityEvent(event);
+        event.setClassName(TextView.class.getName());
+    }
+
+    @Override
+    public void onInitializeAccessibilityNodeInfo(AccessibilityNodeInfo info) {
+        super.onInitializeAccessibilityNodeInfo(info);
+        info.setClassName(TextView.class.getName());
+
+        if (text != null) {
+            info.setText(text);
+        }
+    }
+
+    // Returns the link under the touch, or null if there isn't one
+    private ClickableSpan findLink(MotionEvent event) {
+
+        if (layout == null || text == null) {
+            return null;
+        }
+
+        int x = (int) event.getX() - getPaddingLeft();
+        int y = (int) event.getY() - getPaddingTop();
+
+        int line = layout.getLineForVertical(y);
+
+        // Touches past the end of a line don't count
+        if (x < layout.getLineLeft(line) || x > layout.getLineRight(line)) {
+            return null;
+        }
+
+        int offset = layout.getOffsetForHorizontal(line, x);
+        ClickableSpan[] links = text.getSpans(offset, offset, ClickableSpan.class);
+
+        return links.length > 0 ? links[0] : null;
+    }
+}
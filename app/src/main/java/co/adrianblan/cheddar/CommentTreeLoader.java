@@ -0,0 +1,194 @@
+package co.adrianblan.cheddar;
+
+import com.firebase.client.DataSnapshot;
+import com.firebase.client.Firebase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Loads a comment tree one depth level at a time, with every comment of a level fetched concurrently
+// The tree is built on the side, and a level is only inserted into the shown list once all of it is in
+// At that point the parents have no other replies shown, so each reply goes right after its earlier siblings
+// That way the list is always in the right order, no matter which order the comments arrive in
+// All callbacks are delivered on the main thread by Firebase, so no locking is needed
+public class CommentTreeLoader {
+
+    public interface Listener {
+        // Called every time a level is complete, with all comments loaded so far in the order they are shown
+        // The list is the same object every time, until the next load
+        // Added are the comments of the level which just finished, items are their raw data
+        // Done is set on the last level
+        void onLevelLoaded(IndexedCommentList comments, List<Comment> added, Map<Long, ItemSource> items, boolean done);
+    }
+
+    private static class Node {
+        final long id;
+        final Node parent;
+        Comment comment;
+        long[] kids;
+
+        // Row in the list once the comment has been inserted
+        int row = -1;
+
+        // Number of replies which have been inserted into the list so far
+        int shownChildren;
+
+        Node(long id, Node parent) {
+            this.id = id;
+            this.parent = parent;
+        }
+    }
+
+    private final ItemFetcher itemFetcher;
+    private final Listener listener;
+
+    // Every comment loaded so far, in the order they are shown
+    private IndexedCommentList comments;
+
+    // The level we are currently fetching
+    private ArrayList<Node> level;
+    private Map<Long, ItemSource> levelItems;
+    private int remaining;
+    private int depth;
+
+    public CommentTreeLoader(Firebase itemUrl, int windowSize, int maxInFlight, Listener listener) {
+        this.listener = listener;
+
+        itemFetcher = new ItemFetcher(itemUrl, windowSize, maxInFlight, new ItemFetcher.Listener() {
+            @Override
+            public void onWindowLoaded(int[] ranks, List<Long> ids, DataSnapshot[] snapshots) {
+                updateLevel(ranks, snapshots);
+            }
+        });
+    }
+
+    // Starts loading the tree below the given top level comment IDs, dropping anything loaded before
+    public void load(long[] kids) {
+
+        cancel();
+
+        comments = new IndexedCommentList();
+
+        ArrayList<Node> roots = new ArrayList<>(kids.length);
+        for (long id : kids) {
+            roots.add(new Node(id, null));
+        }
+
+        depth = 0;
+        startLevel(roots);
+    }
+
+    // Stops loading, and ignores any responses which are still on their way
+    public void cancel() {
+        itemFetcher.cancel();
+        level = null;
+    }
+
+    private void startLevel(ArrayList<Node> nodes) {
+
+        level = nodes;
+        levelItems = new HashMap<>();
+        remaining = nodes.size();
+
+        // Ranks are positions within the level, so each response finds its node directly
+        ArrayList<Long> ids = new ArrayList<>(nodes.size());
+        for (Node n : nodes) {
+            ids.add(n.id);
+        }
+
+        itemFetcher.fetch(0, ids);
+    }
+
+    private void updateLevel(int[] ranks, DataSnapshot[] snapshots) {
+
+        if (level == null) {
+            return;
+        }
+
+        for (int i = 0; i < snapshots.length; i++) {
+
+            Node n = level.get(ranks[i]);
+            ItemSource ret = SnapshotItemSource.of(snapshots[i]);
+
+            if (ret == null) {
+                continue;
+            }
+
+            levelItems.put(n.id, ret);
+
+            // Deleted comments have no text, and we don't show their replies either
+            n.comment = ItemDecoder.decodeComment(n.id, ret);
+            if (n.comment != null) {
+                n.comment.setHierarchy(depth);
+                n.kids = ItemDecoder.decodeKids(ret);
+            }
+        }
+
+        remaining -= snapshots.length;
+
+        // Wait until every comment of the level is in
+        if (remaining > 0) {
+            return;
+        }
+
+        ArrayList<Node> next = new ArrayList<>();
+        ArrayList<Comment> added = new ArrayList<>();
+        for (Node n : level) {
+
+            // Not loaded, deleted, or failed
+            if (n.comment == null) {
+                continue;
+            }
+
+            insert(n);
+            added.add(n.comment);
+
+            // The list has its own copy in its columns now
+            n.comment = null;
+
+            if (n.kids != null) {
+                for (long id : n.kids) {
+                    next.add(new Node(id, n));
+                }
+            }
+        }
+
+        Map<Long, ItemSource> items = levelItems;
+        boolean done = next.isEmpty();
+
+        if (done) {
+            level = null;
+        } else {
+            depth++;
+            startLevel(next);
+        }
+
+        listener.onLevelLoaded(comments, added, items, done);
+    }
+
+    // Puts a comment after its parent and the siblings before it
+    private void insert(Node n) {
+
+        if (n.parent == null) {
+            n.row = comments.add(n.comment);
+            return;
+        }
+
+        Node parent = n.parent;
+        CommentColumns columns = comments.getColumns();
+
+        // Replies which arrive below a collapsed comment are hidden, and counted on it
+        int hiddenBy = 0;
+        for (Node a = parent; a != null; a = a.parent) {
+            if (columns.isCollapsed(a.row)) {
+                columns.setHiddenChildren(a.row, columns.getHiddenChildren(a.row) + 1);
+                hiddenBy++;
+            }
+        }
+
+        n.row = comments.add(comments.indexOf(parent.row) + 1 + parent.shownChildren, n.comment, hiddenBy);
+        parent.shownChildren++;
+    }
+}
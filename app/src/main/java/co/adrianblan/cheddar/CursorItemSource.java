@@ -0,0 +1,107 @@
+package co.adrianblan.cheddar;
+
+import android.database.Cursor;
+
+// Reads item fields from a row of the ItemStore
+// The row is copied out column by column into plain arrays, since the cursor is closed before the item is decoded
+// Numbers stay primitive and the kids are parsed straight into a long[], so there is no map or boxing in between
+public class CursorItemSource implements ItemSource {
+
+    private final String[] columns;
+    private final String[] strings;
+    private final long[] longs;
+    private final boolean[] isLong;
+    private long[] kids;
+
+    // Reads the current row of the cursor, whose columns are named by the given array in order
+    public CursorItemSource(Cursor c, String[] columns) {
+
+        this.columns = columns;
+        strings = new String[columns.length];
+        longs = new long[columns.length];
+        isLong = new boolean[columns.length];
+
+        for (int i = 0; i < columns.length; i++) {
+            if (c.isNull(i)) {
+                continue;
+            }
+
+            if (columns[i].equals("kids")) {
+                kids = parseIds(c.getString(i));
+            } else if (c.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
+                longs[i] = c.getLong(i);
+                isLong[i] = true;
+            } else {
+                strings[i] = c.getString(i);
+            }
+        }
+    }
+
+    @Override
+    public boolean has(String field) {
+
+        if (field.equals("kids")) {
+            return kids != null;
+        }
+
+        int i = indexOf(field);
+        return i >= 0 && (isLong[i] || strings[i] != null);
+    }
+
+    @Override
+    public long getLong(String field, long fallback) {
+        int i = indexOf(field);
+        return i >= 0 && isLong[i] ? longs[i] : fallback;
+    }
+
+    @Override
+    public String getString(String field) {
+        int i = indexOf(field);
+        return i >= 0 ? strings[i] : null;
+    }
+
+    @Override
+    public long[] getLongArray(String field) {
+        return field.equals("kids") ? kids : null;
+    }
+
+    // There are only a handful of columns, so a scan is cheaper than a map
+    private int indexOf(String field) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(field)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The kids are stored comma separated
+    private static long[] parseIds(String joined) {
+
+        if (joined.isEmpty()) {
+            return new long[0];
+        }
+
+        int count = 1;
+        for (int i = 0; i < joined.length(); i++) {
+            if (joined.charAt(i) == ',') {
+                count++;
+            }
+        }
+
+        long[] ids = new long[count];
+        int start = 0;
+
+        for (int n = 0; n < count; n++) {
+            int end = joined.indexOf(',', start);
+            if (end < 0) {
+                end = joined.length();
+            }
+
+            ids[n] = Long.parseLong(joined.substring(start, end));
+            start = end + 1;
+        }
+
+        return ids;
+    }
+}
@@ -0,0 +1,281 @@
+package co.adrianblan.cheddar;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.View;
+
+import com.nostra13.universalimageloader.core.ImageLoader;
+import com.nostra13.universalimageloader.core.assist.FailReason;
+import com.nostra13.universalimageloader.core.assist.ImageSize;
+import com.nostra13.universalimageloader.core.listener.SimpleImageLoadingListener;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+// Favicons by host, so that stories from the same site share one download
+// Icons are kept in a byte bounded memory cache, and on disk so that they survive restarts
+// Requests for a host which is already being fetched wait for that fetch instead of starting another one
+// Must be used from the main thread, the callbacks are delivered there too
+public class FaviconCache {
+
+    public interface Callback {
+        // Called with the favicon of the host, or null if it could not be fetched
+        void onFavicon(String host, Bitmap favicon);
+    }
+
+    // Icons on disk are fetched again after a month
+    private static final long MAX_AGE = TimeUnit.DAYS.toMillis(30);
+
+    // Hosts without an icon are asked again on refresh, but not if they failed just now
+    private static final long MISSING_RETRY = TimeUnit.MINUTES.toMillis(1);
+
+    // We never show icons larger than this
+    private static final int TARGET_SIZE = 144;
+
+    private static FaviconCache instance;
+
+    private final LruCache<String, Bitmap> memory;
+    private final File directory;
+    private final Executor writer;
+
+    // Hosts which are being fetched, and everyone waiting for them
+    private final Map<String, ArrayList<Callback>> inFlight;
+
+    // Hosts which have no icon, so that we don't keep asking for them, and when we found out
+    private final Map<String, Long> missing;
+
+    public static synchronized FaviconCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new FaviconCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private FaviconCache(Context context) {
+
+        // An eighth of the heap, but never more than 4 MiB
+        int maxBytes = (int) Math.min(4 * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8);
+
+        memory = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String host, Bitmap favicon) {
+                return favicon.getRowBytes() * favicon.getHeight();
+            }
+        };
+
+        directory = new File(context.getCacheDir(), "favicons");
+        writer = TaskScheduler.getInstance().executor(TaskScheduler.Lane.SERIAL, TaskScheduler.PRIORITY_BACKGROUND);
+        inFlight = new HashMap<>();
+        missing = new HashMap<>();
+    }
+
+    // Lets hosts which had no icon be tried again, such as when the user refreshes
+    public void retryMissing() {
+
+        long now = System.currentTimeMillis();
+        Iterator<Long> it = missing.values().iterator();
+
+        while (it.hasNext()) {
+            if (now - it.next() > MISSING_RETRY) {
+                it.remove();
+            }
+        }
+    }
+
+    // Returns the icon if it's in memory, without fetching anything
+    public Bitmap peek(String host) {
+        return memory.get(host);
+    }
+
+    // Gets the favicon of a host, from memory, disk or the network in that order
+    // The priority is a TaskScheduler priority, so that hosts of rows on screen are fetched first
+    public void load(final String host, final int priority, Callback callback) {
+
+        Bitmap cached = memory.get(host);
+
+        if (cached != null || missing.containsKey(host)) {
+            callback.onFavicon(host, cached);
+            return;
+        }
+
+        // Someone is already fetching it
+        ArrayList<Callback> waiting = inFlight.get(host);
+        if (waiting != null) {
+            waiting.add(callback);
+            return;
+        }
+
+        waiting = new ArrayList<>();
+        waiting.add(callback);
+        inFlight.put(host, waiting);
+
+        // Favicons are shared between screens, so they are never cancelled along with one
+        TaskScheduler.getInstance().submit(TaskScheduler.Lane.DECODE, priority, null, new TaskScheduler.Task<Bitmap>() {
+            protected Bitmap doInBackground() {
+                return readFromDisk(host);
+            }
+
+            protected void onPostExecute(Bitmap favicon) {
+                if (favicon != null) {
+                    finish(host, favicon);
+                } else {
+                    fetch(host, priority);
+                }
+            }
+        });
+    }
+
+    private void fetch(final String host, int priority) {
+
+        // Url to an API that automatically fetches the best thumbnail for the site
+        String thumbnailUrl = "http://icons.better-idea.org/api/icons?url=" + host + "&i_am_feeling_lucky=yes";
+
+        // For some weird reason, the ImageLoaderLibrary crashes if run below KitKat
+        // Thus we instead have to do it manually in the network lane
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+
+            // Smarter way to async fetch a thumbnail
+            SimpleImageLoadingListener thumbnailLoader = new SimpleImageLoadingListener() {
+                @Override
+                public void onLoadingComplete(String imageUri, View view, Bitmap thumbnail) {
+                    fetched(host, thumbnail);
+                }
+
+                @Override
+                public void onLoadingFailed(String imageUri, View view, FailReason failReason) {
+                    fetched(host, null);
+                }
+
+                @Override
+                public void onLoadingCancelled(String imageUri, View view) {
+                    finish(host, null);
+                }
+            };
+
+            ImageSize targetSize = new ImageSize(TARGET_SIZE, TARGET_SIZE); // result Bitmap will be fit to this size
+            ImageLoader.getInstance().loadImage(thumbnailUrl, targetSize, thumbnailLoader);
+        } else {
+
+            final String url = thumbnailUrl;
+
+            TaskScheduler.getInstance().submit(TaskScheduler.Lane.NETWORK, priority, null, new TaskScheduler.Task<Bitmap>() {
+
+                // Task that fetches a thumbnail, decoded straight down to the size we show
+                protected Bitmap doInBackground() {
+                    Bitmap b = null;
+                    InputStream in = null;
+                    try {
+                        in = new java.net.URL(url).openStream();
+                        b = BitmapDecoder.decodeStream(in, TARGET_SIZE);
+                    } catch (Exception e) {
+                        Log.e("Image fetching error", "" + e.getMessage());
+                    } finally {
+                        if (in != null) {
+                            try {
+                                in.close();
+                            } catch (Exception ignored) {
+                            }
+                        }
+                    }
+                    return b;
+                }
+
+                protected void onPostExecute(Bitmap thumbnail) {
+                    fetched(host, thumbnail);
+                }
+            });
+        }
+    }
+
+    // Keeps a freshly downloaded icon, or remembers that the host has none
+    private void fetched(String host, Bitmap favicon) {
+
+        if (favicon != null) {
+            writeToDisk(host, favicon);
+        } else {
+            missing.put(host, System.currentTimeMillis());
+        }
+
+        finish(host, favicon);
+    }
+
+    private void finish(String host, Bitmap favicon) {
+
+        if (favicon != null) {
+            memory.put(host, favicon);
+        }
+
+        ArrayList<Callback> waiting = inFlight.remove(host);
+
+        if (waiting != null) {
+            for (Callback c : waiting) {
+                c.onFavicon(host, favicon);
+            }
+        }
+    }
+
+    private File fileFor(String host) {
+        return new File(directory, host + ".png");
+    }
+
+    private Bitmap readFromDisk(String host) {
+
+        File file = fileFor(host);
+
+        if (!file.exists() || System.currentTimeMillis() - file.lastModified() > MAX_AGE) {
+            return null;
+        }
+
+        return BitmapFactory.decodeFile(file.getPath());
+    }
+
+    private void writeToDisk(final String host, final Bitmap favicon) {
+
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                if (!directory.exists() && !directory.mkdirs()) {
+                    return;
+                }
+
+                // Written next to the icon and moved into place, so that a crash never leaves half an icon behind
+                File file = fileFor(host);
+                File temp = new File(directory, host + ".tmp");
+                OutputStream out = null;
+                boolean written = false;
+
+                try {
+                    out = new FileOutputStream(temp);
+                    written = favicon.compress(Bitmap.CompressFormat.PNG, 100, out);
+                } catch (Exception e) {
+                    System.err.println("Could not store favicon! " + e);
+                } finally {
+                    if (out != null) {
+                        try {
+                            out.close();
+                        } catch (Exception e) {
+                            written = false;
+                        }
+                    }
+                }
+
+                if (!written || !temp.renameTo(file)) {
+                    temp.delete();
+                }
+            }
+        });
+    }
+}
@@ -2,12 +2,11 @@ package co.adrianblan.cheddar;
 
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.Bitmap;
 import android.os.Bundle;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
@@ -15,23 +14,62 @@ import android.widget.TextView;
 import com.amulyakhare.textdrawable.TextDrawable;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Created by Adrian on 2015-07-25.
  */
-public class FeedAdapter extends BaseAdapter {
+public class FeedAdapter extends RowAdapter implements TimeTicker.Rows {
 
     private ArrayList<FeedItem> feedItems;
     private final Context context;
 
+    // Submissions without an url show this instead of a domain
+    private final int hackerNewsSymbol;
+
+    // Items which have arrived ahead of their turn, indexed by their rank in the submission list
+    private SparseArray<FeedItem> slots;
+
+    // Number of ranks which have been moved from the slots into feedItems
+    private int publishedRanks;
+
+    // Marks a slot whose item could not be loaded, so that it doesn't block the ones after it
+    private static final FeedItem MISSING = new FeedItem();
+
+    // Index from which the items are stale cached copies, or -1 if everything is fresh
+    // Freshly published items overwrite the stale ones from the top, so the list never goes blank
+    private int staleFrom;
+
+    // Position of every shown item, and the shown item for every ID, so lookups don't scan the list
+    // Appends and overwrites keep them up to date, anything which shifts items rebuilds them on the next lookup
+    private IdentityHashMap<FeedItem, Integer> positions;
+    private HashMap<Long, FeedItem> itemsById;
+    private boolean indexDirty;
+
     public FeedAdapter(Context c) {
         feedItems = new ArrayList<>();
+        slots = new SparseArray<>();
+        publishedRanks = 0;
+        staleFrom = -1;
+        positions = new IdentityHashMap<>();
+        itemsById = new HashMap<>();
         context = c;
+        hackerNewsSymbol = SymbolTable.intern(c.getResources().getString(R.string.hacker_news_url_placeholder));
     }
 
     public FeedAdapter(ArrayList<FeedItem> fi, Context c) {
         feedItems = fi;
+        slots = new SparseArray<>();
+        publishedRanks = fi.size();
+        staleFrom = -1;
+        positions = new IdentityHashMap<>();
+        itemsById = new HashMap<>();
+        indexDirty = true;
         context = c;
+        hackerNewsSymbol = SymbolTable.intern(c.getResources().getString(R.string.hacker_news_url_placeholder));
     }
 
     public ArrayList<FeedItem> getFeedItems(){
@@ -40,21 +78,163 @@ public class FeedAdapter extends BaseAdapter {
 
     public void add (FeedItem f){
         feedItems.add(f);
+        index(feedItems.size() - 1);
+    }
+
+    // Places an item at its rank, a null item means that the rank will never be filled
+    public void put (int rank, FeedItem f){
+        if(rank >= publishedRanks) {
+            slots.put(rank, f != null ? f : MISSING);
+        }
+    }
+
+    // Moves the contiguous run of filled slots after the published items into the list
+    // Returns the number of items which became visible
+    public int publish (){
+        int added = 0;
+
+        FeedItem f;
+        while((f = slots.get(publishedRanks)) != null){
+            slots.remove(publishedRanks);
+            publishedRanks++;
+
+            if(f != MISSING){
+                if(staleFrom >= 0){
+
+                    // The item may have moved up, so it must not be left further down in the stale part
+                    int old = getPosition(f);
+                    if(old > staleFrom){
+                        feedItems.remove(old);
+                        indexDirty = true;
+                    }
+
+                    if(staleFrom < feedItems.size()){
+                        unindex(feedItems.get(staleFrom));
+                        feedItems.set(staleFrom, f);
+                        index(staleFrom);
+                    } else {
+                        add(f);
+                    }
+                    staleFrom++;
+                } else {
+                    add(f);
+                }
+                added++;
+            }
+        }
+
+        return added;
+    }
+
+    // Whether the item has arrived, but is waiting for the items above it
+    public boolean isPending (FeedItem f){
+        return slots.indexOfValue(f) >= 0;
+    }
+
+    // Keeps showing the current items, but lets the next published items replace them from the top
+    public void markStale() {
+        slots.clear();
+        publishedRanks = 0;
+        staleFrom = 0;
+    }
+
+    // Rearranges the items to follow a new submission list, for the first count ranks
+    // Items we already have are reused, unless they are in the set of changed IDs
+    // Returns the ranks which still have to be fetched
+    public ArrayList<Integer> reorder (List<Long> ids, int count, Set<Long> changed){
+
+        // Everything we have, whether it's shown or still waiting in a slot
+        HashMap<Long, FeedItem> known = new HashMap<>();
+        for(FeedItem f : feedItems){
+            known.put(f.getSubmissionId(), f);
+        }
+        for(int i = 0; i < slots.size(); i++){
+            FeedItem f = slots.valueAt(i);
+            if(f != MISSING) {
+                known.put(f.getSubmissionId(), f);
+            }
+        }
+
+        // The current items stay on screen until they are replaced
+        markStale();
+
+        ArrayList<Integer> missing = new ArrayList<>();
+
+        for(int rank = 0; rank < count && rank < ids.size(); rank++){
+            Long id = ids.get(rank);
+            FeedItem f = known.get(id);
+
+            if(f != null && !changed.contains(id)){
+                put(rank, f);
+            } else {
+                missing.add(rank);
+            }
+        }
+
+        return missing;
+    }
+
+    public boolean isStale() {
+        return staleFrom >= 0;
+    }
+
+    // Removes whatever stale items haven't been replaced by fresh ones
+    public void dropStale() {
+        if(staleFrom >= 0 && staleFrom < feedItems.size()){
+            feedItems.subList(staleFrom, feedItems.size()).clear();
+            indexDirty = true;
+        }
+        staleFrom = -1;
     }
 
     public void clear() {
         feedItems.clear();
+        positions.clear();
+        itemsById.clear();
+        indexDirty = false;
+        slots.clear();
+        publishedRanks = 0;
+        staleFrom = -1;
     }
 
     public int getPosition(FeedItem f) {
+        rebuildIndex();
+        Integer position = positions.get(f);
+        return position != null ? position : -1;
+    }
+
+    // Returns the shown item with the given ID, or null if we don't have it
+    public FeedItem findItem(long submissionId) {
+        rebuildIndex();
+        return itemsById.get(submissionId);
+    }
+
+    private void index(int position) {
+        if(!indexDirty) {
+            FeedItem f = feedItems.get(position);
+            positions.put(f, position);
+            itemsById.put(f.getSubmissionId(), f);
+        }
+    }
 
-        for(int i = 0; i < getCount(); i++) {
-            if(feedItems.get(i).equals(f)){
-                return i;
+    private void unindex(FeedItem f) {
+        if(!indexDirty) {
+            positions.remove(f);
+            if(itemsById.get(f.getSubmissionId()) == f) {
+                itemsById.remove(f.getSubmissionId());
             }
         }
+    }
 
-        return -1;
+    private void rebuildIndex() {
+        if(indexDirty) {
+            indexDirty = false;
+            positions.clear();
+            itemsById.clear();
+            for(int i = 0; i < feedItems.size(); i++) {
+                index(i);
+            }
+        }
     }
 
     @Override
@@ -69,7 +249,17 @@ public class FeedAdapter extends BaseAdapter {
 
     @Override
     public long getItemId(int position) {
-        return 0;
+        return feedItems.get(position).getSubmissionId();
+    }
+
+    @Override
+    public long getTimestamp(int position) {
+        return feedItems.get(position).getTimestamp();
+    }
+
+    @Override
+    public TextView getTimeView(View row) {
+        return (TextView) row.findViewById(R.id.feed_item_time);
     }
 
     @Override
@@ -113,7 +303,7 @@ public class FeedAdapter extends BaseAdapter {
         holder.shortUrl.setText(item.getShortUrl());
         holder.score.setText(Long.toString(item.getScore()));
         holder.comments.setText(Long.toString(item.getDescendants()));
-        holder.time.setText(item.getTime());
+        holder.time.setText(TimeFormatter.format(item.getTimestamp()));
 
         // If we have a high resolution thumbnail, display it
         if(item.getThumbnail() != null){
@@ -135,24 +325,12 @@ public class FeedAdapter extends BaseAdapter {
             @Override
             public void onClick(View v) {
 
-                Bitmap thumbnail = item.getThumbnail();
-
-                // Store thumbnail
-                if(thumbnail != null) {
-
-                    final int maxThumbnailSize = 144;
-
-                    // We can't pass through too much data through intents (terrible)
-                    // Wordpress has something silly like 512x512 px
-                    if (thumbnail.getHeight() > maxThumbnailSize || thumbnail.getWidth() > maxThumbnailSize) {
-                        thumbnail = Bitmap.createScaledBitmap(thumbnail, maxThumbnailSize, maxThumbnailSize, false);
-                    }
-                }
+                // The thumbnail stays in this process, the intent only carries the item
+                ThumbnailRegistry.getInstance().put(item.getSubmissionId(), item.getThumbnail());
 
                 Intent intent = new Intent(v.getContext(), CommentActivity.class);
                 Bundle b = new Bundle();
                 b.putParcelable("feedItem", item);
-                intent.putExtra("thumbnail", thumbnail);
                 intent.putExtras(b);
                 context.startActivity(intent);
             }
@@ -163,7 +341,7 @@ public class FeedAdapter extends BaseAdapter {
         holder.body.setOnClickListener(commentOnClickListener);
 
         // Webview, click on thumbnail
-        if(item.getShortUrl().equals(context.getResources().getString(R.string.hacker_news_url_placeholder))){
+        if(item.getShortUrlSymbol() == hackerNewsSymbol){
 
             // If it points to hacker news, we need to the comments on click instead
             holder.thumbnail.setOnClickListener(commentOnClickListener);
@@ -172,20 +350,12 @@ public class FeedAdapter extends BaseAdapter {
                 @Override
                 public void onClick(View v) {
 
-                    Bitmap thumbnail = item.getThumbnail();
-
-                    // Store thumbnail
-                    if(thumbnail != null) {
-                        // We can't pass through too much data through intents (terrible)
-                        if (thumbnail.getHeight() > 100 || thumbnail.getWidth() > 100) {
-                            thumbnail = Bitmap.createScaledBitmap(thumbnail, 100, 100, false);
-                        }
-                    }
+                    // The comments may be opened from the webview, so they need the thumbnail too
+                    ThumbnailRegistry.getInstance().put(item.getSubmissionId(), item.getThumbnail());
 
                     Intent intent = new Intent(v.getContext(), WebViewActivity.class);
                     Bundle b = new Bundle();
                     b.putParcelable("feedItem", item);
-                    intent.putExtra("thumbnail", thumbnail);
                     intent.putExtras(b);
                     context.startActivity(intent);
                 }
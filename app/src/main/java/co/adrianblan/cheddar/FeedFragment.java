@@ -1,15 +1,13 @@
 package co.adrianblan.cheddar;
 
+import android.content.SharedPreferences;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.os.AsyncTask;
-import android.os.Build;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.support.v4.app.Fragment;
 import android.support.v4.widget.SwipeRefreshLayout;
 import android.support.v7.app.ActionBar;
-import android.support.v7.graphics.Palette;
-import android.util.Log;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -29,18 +27,14 @@ import com.firebase.client.ValueEventListener;
 import com.github.ksoichiro.android.observablescrollview.ObservableListView;
 import com.github.ksoichiro.android.observablescrollview.ObservableScrollViewCallbacks;
 import com.github.ksoichiro.android.observablescrollview.ScrollState;
-import com.nostra13.universalimageloader.core.ImageLoader;
-import com.nostra13.universalimageloader.core.assist.ImageSize;
-import com.nostra13.universalimageloader.core.listener.SimpleImageLoadingListener;
 
-import java.io.InputStream;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
 
 /**
  * Created by Adrian on 2015-07-28.
@@ -57,9 +51,51 @@ public class FeedFragment extends Fragment implements ObservableScrollViewCallba
 
     // Sub URL used for different stories
     private Firebase storiesUrl;
+    private String storiesName;
+
+    // Local copy of the stories, so that we have something to show before the network responds
+    private ItemStore itemStore;
+    private boolean loadingSubmissionIDs;
+
+    // Colors picked from the favicons of the hosts we have seen before
+    private PaletteCache paletteCache;
+
+    // Our feed is saved there instead of in the Bundle, under this token
+    private StateStore stateStore;
+    private String stateToken;
+    private boolean restoringState;
+
+
+    // Fetches submissions in windows, so that we don't flood the network
+    private ItemFetcher itemFetcher;
+    private final int fetchWindowSize = 10;
+    private final int fetchMaxInFlight = 6;
+
+    // Fetches the next page while the current one is still on screen
+    private PrefetchScheduler prefetchScheduler;
+    private final int prefetchLookahead = 10;
+    private final int prefetchMaxPending = 40;
+
+    // Keeps the visible submissions up to date while live mode is on
+    private LiveFeedUpdater liveUpdater;
+    private boolean liveUpdates;
+
+    // Live mode is shared by all feeds, so every tab follows the preference when it's toggled in another one
+    // Kept in a field, since the preferences only hold on to their listeners weakly
+    private final SharedPreferences.OnSharedPreferenceChangeListener liveUpdatesListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            if ("live_updates".equals(key)) {
+                setLiveUpdates(prefs.getBoolean(key, false));
+            }
+        }
+    };
 
-    // Collection of AsyncTasks we use to keep them from overflowing
-    private ArrayList<AsyncTask> asyncTasks;
+    // Changes to the feed are told to the list at most once per frame
+    private UpdateDispatcher feedUpdates;
+
+    // Keeps the time labels of the submissions on screen current
+    private TimeTicker timeTicker;
 
     //Throttle submissions
     private Date lastSubmissionUpdate;
@@ -72,6 +108,7 @@ public class FeedFragment extends Fragment implements ObservableScrollViewCallba
     ProgressBar footer;
 
     private SwipeRefreshLayout swipeContainer;
+    private ObservableListView listView;
 
     public static FeedFragment newInstance() {
         FeedFragment f = new FeedFragment();
@@ -88,21 +125,73 @@ public class FeedFragment extends Fragment implements ObservableScrollViewCallba
         // Init API stuff
         Firebase.setAndroidContext(getActivity().getApplicationContext());
         baseUrl = new Firebase("https://hacker-news.firebaseio.com/v0/");
-        storiesUrl = baseUrl.child(getArguments().getString("url"));
+        storiesName = getArguments().getString("url");
+        storiesUrl = baseUrl.child(storiesName);
+        itemStore = ItemStore.getInstance(getActivity());
+        paletteCache = PaletteCache.getInstance(getActivity());
+        stateStore = StateStore.getInstance(getActivity());
+        itemFetcher = new ItemFetcher(baseUrl.child("/item/"), fetchWindowSize, fetchMaxInFlight, new ItemFetcher.Listener() {
+            @Override
+            public void onWindowLoaded(int[] ranks, List<Long> ids, DataSnapshot[] snapshots) {
+                updateSubmissionWindow(ranks, ids, snapshots);
+            }
+        });
+
+        prefetchScheduler = new PrefetchScheduler(prefetchLookahead, prefetchMaxPending, new PrefetchScheduler.Listener() {
+            @Override
+            public void onPrefetch() {
+
+                // The first page is loaded as soon as we start, and there may be nothing left to load
+                if (restoringState) {
+                    return;
+                }
+
+                // The IDs aren't saved, so after being recreated we have to fetch them again before the next page
+                if (submissionIDs == null || loadedSubmissions < submissionIDs.size()) {
+                    updateSubmissions();
+                }
+            }
+        });
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getActivity());
+        liveUpdates = prefs.getBoolean("live_updates", false);
+        prefs.registerOnSharedPreferenceChangeListener(liveUpdatesListener);
+        liveUpdater = new LiveFeedUpdater(storiesUrl, baseUrl.child("/item/"), new LiveFeedUpdater.Listener() {
+            @Override
+            public void onIdsChanged(ArrayList<Long> ids) {
+
+                // The first load takes care of itself, and we don't care if nothing moved
+                if (submissionIDs != null && !ids.equals(submissionIDs)) {
+                    applySubmissionIDs(ids, new HashSet<Long>());
+                }
+            }
+
+            @Override
+            public void onItemChanged(long id, ItemSource item) {
+                updateLiveSubmission(id, item);
+            }
+        });
 
-        //noinspection Convert2Diamond
-        asyncTasks = new ArrayList<>();
         lastSubmissionUpdate = new Date();
 
+        feedAdapter = new FeedAdapter(getActivity());
+        feedUpdates = new UpdateDispatcher(feedAdapter);
+
         if (savedInstanceState == null) {
-            feedAdapter = new FeedAdapter(getActivity());
+            stateToken = stateStore.newToken();
+            loadedSubmissions = 0;
         } else {
-            // Restore saved data
-            ArrayList<FeedItem> feedItems = savedInstanceState.getParcelableArrayList("feedItems");
-            feedAdapter = new FeedAdapter(feedItems, getActivity());
-        }
+            // Restore saved data, which is still in memory unless the process was killed
+            stateToken = savedInstanceState.getString("feedState");
+            restoringState = true;
 
-        loadedSubmissions = feedAdapter.getCount();
+            stateStore.restore(stateToken, ItemCodec.FEED_ITEMS, this, new StateStore.Callback<FeedItem>() {
+                @Override
+                public void onRestored(ArrayList<FeedItem> feedItems) {
+                    restoreFeedItems(feedItems);
+                }
+            });
+        }
 
     }
 
@@ -111,7 +200,7 @@ public class FeedFragment extends Fragment implements ObservableScrollViewCallba
         super.onActivityCreated(savedInstance);
 
         // We load only onstart since we need to edit view visibility in updateSubmissions()
-        if (loadedSubmissions == 0) {
+        if (loadedSubmissions == 0 && !restoringState) {
             updateSubmissions();
         }
 
@@ -124,18 +213,26 @@ public class FeedFragment extends Fragment implements ObservableScrollViewCallba
 
         View rootView = inflater.inflate(R.layout.fragment_feed, container, false);
 
-        ObservableListView listView = (ObservableListView) rootView.findViewById(R.id.feed_list);
+        listView = (ObservableListView) rootView.findViewById(R.id.feed_list);
         listView.setScrollViewCallbacks(this);
 
         no_submissions = rootView.findViewById(R.id.activity_main_none);
         progress = rootView.findViewById(R.id.activity_main_progress);
 
         listView.setAdapter(feedAdapter);
+        feedAdapter.setListView(listView);
+        timeTicker = new TimeTicker(listView);
+
+        // A restored feed doesn't need to wait for anything
+        if (feedAdapter.getCount() > 0) {
+            progress.setVisibility(View.GONE);
+        }
 
-        //If we scroll to the end, we simply fetch more submissions
+        // The next page is fetched well before we scroll to the end
         listView.setOnScrollListener(new AbsListView.OnScrollListener() {
 
-            private int preLast;
+            private int preFirst = -1;
+            private int preCount = -1;
 
             @Override
             public void onScrollStateChanged(AbsListView view, int scrollState) {
@@ -145,21 +242,15 @@ public class FeedFragment extends Fragment implements ObservableScrollViewCallba
             public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
 
                 if (view.getId() == R.id.feed_list) {
-                    final int lastItem = firstVisibleItem + visibleItemCount;
-                    if (lastItem >= totalItemCount) {
 
-                        Date d = new Date();
-                        long seconds = (d.getTime() - lastSubmissionUpdate.getTime()) / 1000;
-
-                        //to avoid multiple calls for last item
-                        if (lastItem != preLast && lastItem >= submissionUpdateNum && seconds >= submissionUpdateTime) {
-
-                            // Get new feed items
-                            updateSubmissions();
-                            preLast = lastItem;
-                            lastSubmissionUpdate = d;
-                        }
+                    // Rows which scroll off screen lose their live listeners
+                    if (firstVisibleItem != preFirst || visibleItemCount != preCount) {
+                        preFirst = firstVisibleItem;
+                        preCount = visibleItemCount;
+                        updateLiveSubscriptions();
                     }
+
+                    prefetchScheduler.onScroll(firstVisibleItem, visibleItemCount, feedAdapter.getCount(), loadedSubmissions);
                 }
             }
         });
@@ -194,24 +285,28 @@ public class FeedFragment extends Fragment implements ObservableScrollViewCallba
 
             lastSubmissionUpdate = d;
 
-            //First we need to cancel all asynctasks
-            while (!asyncTasks.isEmpty()) {
+            // Hosts which had no icon get another chance
+            FaviconCache.getInstance(getActivity()).retryMissing();
 
-                // Cancel all not finished tasks
-                if (!asyncTasks.get(0).getStatus().equals(AsyncTask.Status.FINISHED)) {
-                    asyncTasks.get(0).cancel(true);
-                }
-
-                asyncTasks.remove(0);
+            // If we already have a list, we only need to fetch what has changed
+            if (submissionIDs != null) {
+                refreshSubmissions();
+                swipeContainer.setRefreshing(false);
+                return;
             }
 
-            // We also cancel all image fetching
-            ImageLoader.getInstance().stop();
+            //First we need to cancel all our background tasks
+            TaskScheduler.getInstance().cancelAll(this);
+
+            // We also cancel all item fetching, favicons are shared so they can finish
+            itemFetcher.cancel();
+            prefetchScheduler.reset();
 
             loadedSubmissions = 0;
             submissionIDs = null;
+            loadingSubmissionIDs = false;
             feedAdapter.clear();
-            feedAdapter.notifyDataSetChanged();
+            feedUpdates.markDataSetChanged();
 
             progress.setVisibility(View.VISIBLE);
             footer.setVisibility(View.GONE);
@@ -222,19 +317,250 @@ public class FeedFragment extends Fragment implements ObservableScrollViewCallba
         }
     }
 
+    // Shows the feed we had before being recreated, or starts over if it was lost
+    private void restoreFeedItems(ArrayList<FeedItem> feedItems) {
+
+        restoringState = false;
+
+        if (feedItems == null || feedItems.isEmpty()) {
+
+            // The views may not exist yet, in which case onActivityCreated will load it
+            loadedSubmissions = 0;
+            if (listView != null) {
+                updateSubmissions();
+            }
+            return;
+        }
+
+        feedAdapter = new FeedAdapter(feedItems, getActivity());
+        feedUpdates.setAdapter(feedAdapter);
+        loadedSubmissions = feedAdapter.getCount();
+
+        if (listView != null) {
+            listView.setAdapter(feedAdapter);
+            feedAdapter.setListView(listView);
+            progress.setVisibility(View.GONE);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        // Nothing we started needs to finish once we are gone
+        TaskScheduler.getInstance().cancelAll(this);
+        feedUpdates.cancel();
+        itemFetcher.cancel();
+        prefetchScheduler.reset();
+        PreferenceManager.getDefaultSharedPreferences(getActivity()).unregisterOnSharedPreferenceChangeListener(liveUpdatesListener);
+
+        if (getActivity() != null && getActivity().isFinishing()) {
+            stateStore.discard(stateToken);
+        }
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        timeTicker.start();
+
+        if (liveUpdates) {
+            liveUpdater.start();
+            updateLiveSubscriptions();
+        }
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+
+        // No need to keep anything fresh while we aren't shown
+        liveUpdater.stop();
+        timeTicker.stop();
+    }
+
+    // Subscribes to the submissions which are currently on screen
+    private void updateLiveSubscriptions() {
+
+        if (!liveUpdater.isStarted() || listView == null) {
+            return;
+        }
+
+        ArrayList<Long> visible = new ArrayList<>();
+        int last = Math.min(listView.getLastVisiblePosition(), feedAdapter.getCount() - 1);
+
+        for (int i = Math.max(listView.getFirstVisiblePosition(), 0); i <= last; i++) {
+            visible.add(feedAdapter.getItem(i).getSubmissionId());
+        }
+
+        liveUpdater.setVisible(visible);
+    }
+
+    // Turns live mode on or off, it only runs while we are shown
+    private void setLiveUpdates(boolean live) {
+
+        if (live == liveUpdates) {
+            return;
+        }
+
+        liveUpdates = live;
+
+        if (!isResumed()) {
+            return;
+        }
+
+        if (live) {
+            liveUpdater.start();
+            updateLiveSubscriptions();
+        } else {
+            liveUpdater.stop();
+        }
+    }
+
+    // Copies the live data of a submission into the one we show
+    private void updateLiveSubmission(long id, ItemSource item) {
+
+        FeedItem f = feedAdapter.findItem(id);
+
+        if (f == null) {
+            return;
+        }
+
+        itemStore.putItem(id, item);
+        FeedItem fresh = ItemDecoder.decodeFeedItem(id, item);
+
+        // The first callback for every subscription is the current value, which is usually what we have
+        if (fresh.getScore() == f.getScore() && fresh.getDescendants() == f.getDescendants()
+                && TextUtils.equals(fresh.getTitle(), f.getTitle())) {
+            return;
+        }
+
+        f.setScore(fresh.getScore());
+        f.setDescendants(fresh.getDescendants());
+        f.setTitle(fresh.getTitle());
+
+        // Only the row of this submission has to be bound again
+        feedUpdates.markChanged(feedAdapter.getPosition(f));
+    }
+
+    // Fetches the new list of submissions, and only updates the ones which are new or have changed
+    public void refreshSubmissions() {
+
+        storiesUrl.addListenerForSingleValueEvent(new ValueEventListener() {
+
+            @Override
+            public void onDataChange(DataSnapshot snapshot) {
+                final ArrayList<Long> newIDs = (ArrayList<Long>) snapshot.getValue();
+
+                if (newIDs == null) {
+                    return;
+                }
+
+                // The API keeps a short list of recently changed items, which is all we need to check
+                baseUrl.child("/updates/items").addListenerForSingleValueEvent(new ValueEventListener() {
+
+                    @Override
+                    public void onDataChange(DataSnapshot snapshot) {
+                        List<Long> updated = (List<Long>) snapshot.getValue();
+                        applySubmissionIDs(newIDs, updated != null ? new HashSet<>(updated) : new HashSet<Long>());
+                    }
+
+                    @Override
+                    public void onCancelled(FirebaseError firebaseError) {
+                        System.err.println("Could not retrieve updates! " + firebaseError);
+
+                        // Without the updates we can still reorder what we have
+                        applySubmissionIDs(newIDs, new HashSet<Long>());
+                    }
+                });
+            }
+
+            @Override
+            public void onCancelled(FirebaseError firebaseError) {
+                System.err.println("Could not retrieve posts! " + firebaseError);
+            }
+        });
+    }
+
+    // Moves the loaded submissions to their new ranks, and fetches the ones we don't have
+    private void applySubmissionIDs(ArrayList<Long> newIDs, Set<Long> changed) {
+
+        submissionIDs = newIDs;
+        itemStore.putIds(storiesName, submissionIDs);
+        loadedSubmissions = Math.min(loadedSubmissions, submissionIDs.size());
+
+        // Anything still on its way goes to its new rank instead of being fetched again
+        // Changed items are left out, since what is on its way may be older than the change
+        Map<Long, Integer> ranks = new HashMap<>();
+        for (int rank = 0; rank < loadedSubmissions; rank++) {
+            Long id = submissionIDs.get(rank);
+            if (!changed.contains(id)) {
+                ranks.put(id, rank);
+            }
+        }
+        Set<Long> onTheirWay = itemFetcher.rerank(ranks);
+
+        ArrayList<Integer> missing = feedAdapter.reorder(submissionIDs, loadedSubmissions, changed);
+        for (int i = missing.size() - 1; i >= 0; i--) {
+            if (onTheirWay.contains(submissionIDs.get(missing.get(i)))) {
+                missing.remove(i);
+            }
+        }
+        feedAdapter.publish();
+
+        if (missing.isEmpty()) {
+            if (itemFetcher.isIdle()) {
+                feedAdapter.dropStale();
+            }
+        } else {
+            int[] ranks = new int[missing.size()];
+            ArrayList<Long> ids = new ArrayList<>(missing.size());
+
+            for (int i = 0; i < ranks.length; i++) {
+                ranks[i] = missing.get(i);
+                ids.add(submissionIDs.get(ranks[i]));
+            }
+
+            itemFetcher.fetch(ranks, ids);
+        }
+
+        feedUpdates.markDataSetChanged();
+        updateLiveSubscriptions();
+    }
+
     // Fetches a large number of submissions, and updates them individually
     public void updateSubmissions() {
 
         // If we don't have submissions loaded, we must first load them
         if (submissionIDs == null) {
 
+            // We are already waiting for them
+            if (loadingSubmissionIDs) {
+                return;
+            }
+
+            loadingSubmissionIDs = true;
+
+            // On a cold start we show what we had last time while the network catches up
+            if (feedAdapter.getCount() == 0) {
+                loadCachedSubmissions();
+            }
+
             // Updates the list of 500 submission IDs
             storiesUrl.addListenerForSingleValueEvent(new ValueEventListener() {
 
                 @Override
                 public void onDataChange(DataSnapshot snapshot) {
+                    loadingSubmissionIDs = false;
                     submissionIDs = (ArrayList<Long>) snapshot.getValue();
 
+                    if (submissionIDs == null) {
+                        onCancelled(null);
+                        return;
+                    }
+
+                    itemStore.putIds(storiesName, submissionIDs);
+
                     // Because we are doing this asynchronously, it's easier to update submissions directly
                     updateSubmissions();
 
@@ -246,21 +572,25 @@ public class FeedFragment extends Fragment implements ObservableScrollViewCallba
                 @Override
                 public void onCancelled(FirebaseError firebaseError) {
                     System.err.println("Could not retrieve posts! " + firebaseError);
-                    no_submissions.setVisibility(View.VISIBLE);
+                    loadingSubmissionIDs = false;
                     progress.setVisibility(View.GONE);
                     footer.setVisibility(View.GONE);
+
+                    // If we have cached submissions we keep showing them
+                    if (feedAdapter.getCount() == 0) {
+                        no_submissions.setVisibility(View.VISIBLE);
+                    }
                 }
             });
         } else {
 
             // We cannot use feedAdapter.getCount() directly since that may lead to race conditions
             int start = loadedSubmissions;
+            int end = Math.min(start + submissionUpdateNum, submissionIDs.size());
 
             // From the top 500 submissions, we only load a few at a time
-            for (; loadedSubmissions < start + submissionUpdateNum && loadedSubmissions < submissionIDs.size(); loadedSubmissions++) {
-                // But we must first add each submission to the view manually
-                updateSingleSubmission(submissionIDs.get(loadedSubmissions));
-            }
+            itemFetcher.fetch(start, submissionIDs.subList(start, end));
+            loadedSubmissions = end;
 
             if (loadedSubmissions == submissionIDs.size()) {
                 no_submissions.setVisibility(View.VISIBLE);
@@ -268,87 +598,116 @@ public class FeedFragment extends Fragment implements ObservableScrollViewCallba
         }
     }
 
-    // Gets an url to a single submission and updates it in the feedadapter
-    public void updateSingleSubmission(final Long submissionId) {
+    // Reads the submissions we stored last time, and shows them until fresh ones arrive
+    private void loadCachedSubmissions() {
 
-        Firebase submission = baseUrl.child("/item/" + submissionId);
+        class LoadCachedSubmissionsTask extends TaskScheduler.Task<ArrayList<FeedItem>> {
 
-        submission.addListenerForSingleValueEvent(new ValueEventListener() {
-            @Override
-            public void onDataChange(DataSnapshot snapshot) {
+            protected ArrayList<FeedItem> doInBackground() {
 
-                // We retrieve all objects into a hashmap
-                Map<String, Object> ret = (Map<String, Object>) snapshot.getValue();
+                ArrayList<FeedItem> cached = new ArrayList<>();
+                ArrayList<Long> ids = itemStore.getIds(storiesName);
 
-                if (ret == null) {
+                if (ids == null) {
+                    return cached;
+                }
+
+                List<Long> page = ids.subList(0, Math.min(submissionUpdateNum, ids.size()));
+                Map<Long, ItemSource> items = itemStore.getItems(page);
+
+                for (Long id : page) {
+                    FeedItem f = initNewFeedItem(id, items.get(id));
+
+                    if (f != null) {
+                        cached.add(f);
+                    }
+                }
+
+                return cached;
+            }
+
+            protected void onPostExecute(ArrayList<FeedItem> cached) {
+
+                // The network beat us to it, or there was nothing stored
+                if (cached.isEmpty() || submissionIDs != null || feedAdapter.getCount() > 0 || isCancelled()) {
                     return;
                 }
 
-                String url = (String) ret.get("url");
-                URL site = null;
+                for (int i = 0; i < cached.size(); i++) {
+                    feedAdapter.put(i, cached.get(i));
+                }
+                feedAdapter.publish();
+
+                // Fresh submissions replace the cached ones as they come in
+                feedAdapter.markStale();
+                feedUpdates.markDataSetChanged();
+
+                progress.setVisibility(View.GONE);
 
-                // If the url exists
-                if (url != null) {
-                    try {
-                        site = new URL(url);
-                    } catch (MalformedURLException e) {
-                        System.err.println("Malformed url: " + url);
+                for (FeedItem f : cached) {
+                    if (f.getLongUrl() != null) {
+                        updateSubmissionThumbnail(f.getShortUrl(), f);
                     }
                 }
+            }
+        }
+
+        TaskScheduler.getInstance().submit(TaskScheduler.Lane.DECODE, TaskScheduler.PRIORITY_VISIBLE, this, new LoadCachedSubmissionsTask());
+    }
+
+    // Receives a window of fetched submissions, and places them at their rank in the feedadapter
+    // Windows may arrive out of order, but only the contiguous run from the top is shown
+    public void updateSubmissionWindow(int[] ranks, List<Long> ids, DataSnapshot[] snapshots) {
+
+        Map<Long, ItemSource> fetched = new HashMap<>();
+
+        for (int i = 0; i < snapshots.length; i++) {
 
-                FeedItem f = initNewFeedItem(submissionId, ret, site);
-                feedAdapter.add(f);
-                feedAdapter.notifyDataSetChanged();
+            ItemSource ret = SnapshotItemSource.of(snapshots[i]);
+            FeedItem f = initNewFeedItem(ids.get(i), ret);
+            feedAdapter.put(ranks[i], f);
 
-                if (site != null) {
+            if (f != null) {
+                fetched.put(ids.get(i), ret);
+
+                if (f.getLongUrl() != null) {
                     // Asynchronously updates images for the feed item
-                    updateSubmissionThumbnail(site.getHost(), f);
+                    updateSubmissionThumbnail(f.getShortUrl(), f);
                 }
             }
+        }
 
-            @Override
-            public void onCancelled(FirebaseError firebaseError) {
-                System.err.println("Could not retrieve post! " + firebaseError);
-            }
-        });
-    }
+        itemStore.putItems(fetched);
 
-    // Takes the raw API data and the URL, returns a new feed item
-    public FeedItem initNewFeedItem(Long submissionId, Map<String, Object> ret, URL site) {
+        boolean changed = feedAdapter.publish() > 0;
 
-        FeedItem f = new FeedItem();
+        // Once the page is done, any cached submissions left below it are gone from the list
+        if (feedAdapter.isStale() && itemFetcher.isIdle()) {
+            feedAdapter.dropStale();
+            changed = true;
+        }
 
-        f.setSubmissionId(submissionId);
+        if (changed) {
+            feedUpdates.markDataSetChanged();
+        }
 
-        // Gets readable date
-        String time = getPrettyDate((Long) ret.get("time"));
+        // If we are scrolling fast, the next page may already be due
+        prefetchScheduler.update(feedAdapter.getCount(), loadedSubmissions);
+    }
 
-        // Set titles and other data
-        f.setTitle((String) ret.get("title"));
-        f.setText((String) ret.get("text"));
-        f.setBy((String) ret.get("by"));
-        f.setScore((Long) ret.get("score"));
-        f.setTime(time);
+    // Takes the raw API data of a single submission, returns a new feed item or null if it's missing
+    public FeedItem initNewFeedItem(long submissionId, ItemSource ret) {
 
-        // Jobs stories don't have any descendants, we need to take care of that
-        Object descendantObject = ret.get("descendants");
-        if (descendantObject != null) {
-            f.setDescendants((Long) descendantObject);
-        } else {
-            System.err.println("Null descendants: " + ret.get("title"));
-            f.setDescendants(0L);
+        if (ret == null) {
+            return null;
         }
 
-        // Hacker News site urls are null
-        if (site != null) {
-            String domain = site.getHost().replace("www.", "");
-            f.setShortUrl(domain);
-            f.setLongUrl(site.toString());
-            f.setLetter(domain.substring(0, 1));
-        } else {
-            // The hacker news submissions don't technically have an url, so we cheat
-            f.setShortUrl("Hacker News");
-            f.setLetter("HN");
+        FeedItem f = ItemDecoder.decodeFeedItem(submissionId, ret);
+
+        // If we have seen the host before, we already know its color
+        Integer color = paletteCache.get(f.getShortUrl());
+        if (color != null) {
+            f.setColor(color);
         }
 
         // Generate TextDrawable thumbnail
@@ -359,55 +718,26 @@ public class FeedFragment extends Fragment implements ObservableScrollViewCallba
         return f;
     }
 
-    // Recieves a host url, and the position of the feed item
-    // Fetches a remote server for the url to the best thumbnail to use
+    // Recieves a host url, and the feed item
+    // The favicon is shared by every story from the same host, so it's usually only fetched once
     public void updateSubmissionThumbnail(String url, FeedItem f) {
 
         final FeedItem fi = f;
 
-        // Url to an API that automatically fetches the best thumbnail for the site
-        String thumbnailUrl = "http://icons.better-idea.org/api/icons?url=" + url + "&i_am_feeling_lucky=yes";
-
-        // For some weird reason, the ImageLoaderLibrary crashes if run below KitKat
-        // Thus we instead have to do it manually with an AsyncTask
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-
-            // Smarter way to async fetch a thumbnail
-            SimpleImageLoadingListener thumbnailLoader = new SimpleImageLoadingListener() {
-                @Override
-                public void onLoadingComplete(String imageUri, View view, Bitmap thumbnail) {
-                    processThumbnail(thumbnail, fi);
-                }
-            };
-
-            ImageSize targetSize = new ImageSize(144, 144); // result Bitmap will be fit to this size
-            ImageLoader.getInstance().loadImage(thumbnailUrl, targetSize, thumbnailLoader);
-        } else {
+        // Rows on screen get their favicons before the ones we are prefetching
+        int position = feedAdapter.getPosition(fi);
+        int priority = TaskScheduler.PRIORITY_PREFETCH;
 
-            class DownloadImageTask extends AsyncTask<String, Void, Bitmap> {
-
-                // Asynctask that fetches a thumbnail
-                protected Bitmap doInBackground(String... urls) {
-                    Bitmap b = null;
-                    try {
-                        InputStream in = new java.net.URL(urls[0]).openStream();
-                        b = BitmapFactory.decodeStream(in);
-                    } catch (Exception e) {
-                        Log.e("Image fetching error", e.getMessage());
-                        e.printStackTrace();
-                    }
-                    return b;
-                }
+        if (listView != null && position != -1 && position <= listView.getLastVisiblePosition()) {
+            priority = TaskScheduler.PRIORITY_VISIBLE;
+        }
 
-                protected void onPostExecute(Bitmap thumbnail) {
-                    processThumbnail(thumbnail, fi);
-                }
+        FaviconCache.getInstance(getActivity()).load(url, priority, new FaviconCache.Callback() {
+            @Override
+            public void onFavicon(String host, Bitmap favicon) {
+                processThumbnail(favicon, fi);
             }
-
-            DownloadImageTask task = new DownloadImageTask();
-            asyncTasks.add(task);
-            task.execute(thumbnailUrl);
-        }
+        });
     }
 
     // Takes a thumbnail, and either places it or a TextDrawable for the item
@@ -415,74 +745,50 @@ public class FeedFragment extends Fragment implements ObservableScrollViewCallba
 
         final FeedItem fi = f;
 
-        int position = feedAdapter.getPosition(fi);
-
-        if (thumbnail == null || position == -1) {
+        // The item may still be waiting in its slot for the items above it
+        if (thumbnail == null || (feedAdapter.getPosition(fi) == -1 && !feedAdapter.isPending(fi))) {
             return;
         }
 
         // We only display the image if it's large enough
         // Otherwise we create a TextDrawable for it
         if (thumbnail.getWidth() > 50 && thumbnail.getHeight() > 50) {
-            feedAdapter.getItem(position).setThumbnail(thumbnail);
-            feedAdapter.notifyDataSetChanged();
+            fi.setThumbnail(thumbnail);
+            feedUpdates.markChanged(feedAdapter.getPosition(fi));
         }
 
-        // Generate lots of palettes from the favicon asynchronously
-        Palette.from(thumbnail).generate(new Palette.PaletteAsyncListener() {
-            public void onGenerated(Palette p) {
-
-                List<Palette.Swatch> swatches = p.getSwatches();
-                Palette.Swatch vibrantSwatch = p.getVibrantSwatch();
-
-                TextDrawable drawable;
-                TextDrawable.IShapeBuilder builder = TextDrawable.builder().beginConfig().bold().toUpperCase().endConfig();
+        // The color is usually known already, otherwise we pick it from the favicon
+        paletteCache.generate(fi.getShortUrl(), thumbnail, new PaletteCache.Callback() {
+            @Override
+            public void onColor(String host, Integer color) {
 
-                // We want the vibrant palette, if possible, ortherwise darker palettes
-                if (vibrantSwatch != null) {
-                    drawable = builder.buildRect(fi.getLetter(), vibrantSwatch.getRgb());
-                    fi.setColor(vibrantSwatch.getRgb());
-                } else if (!swatches.isEmpty()) {
-                    drawable = builder.buildRect(fi.getLetter(), swatches.get(0).getRgb());
-                    fi.setColor(swatches.get(0).getRgb());
-                } else {
+                if (color == null || color == fi.getColor()) {
                     return;
                 }
 
-                fi.setTextDrawable(drawable);
-                feedAdapter.notifyDataSetChanged();
+                TextDrawable.IShapeBuilder builder = TextDrawable.builder().beginConfig().bold().toUpperCase().endConfig();
+                fi.setColor(color);
+                fi.setTextDrawable(builder.buildRect(fi.getLetter(), color));
+                feedUpdates.markChanged(feedAdapter.getPosition(fi));
             }
         });
     }
 
-    // Converts the difference between two dates into a pretty date
-    // There's probably a joke in there somewhere
-    public String getPrettyDate(Long time) {
-
-        Date past = new Date(time * 1000);
-        Date now = new Date();
-
-        if (TimeUnit.MILLISECONDS.toDays(now.getTime() - past.getTime()) > 0) {
-            return TimeUnit.MILLISECONDS.toDays(now.getTime() - past.getTime()) + "d";
-        } else if (TimeUnit.MILLISECONDS.toHours(now.getTime() - past.getTime()) > 0) {
-            return TimeUnit.MILLISECONDS.toHours(now.getTime() - past.getTime()) + "h";
-        }
-        if (TimeUnit.MILLISECONDS.toMinutes(now.getTime() - past.getTime()) > 0) {
-            return TimeUnit.MILLISECONDS.toMinutes(now.getTime() - past.getTime()) + "m";
-        } else {
-            return TimeUnit.MILLISECONDS.toSeconds(now.getTime() - past.getTime()) + "s";
-        }
-    }
-
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
 
         // We let each fragment create their own options menu
         // That way we can refresh the feeds individually
-        inflater.inflate(R.menu.menu_main, menu);
+        inflater.inflate(R.menu.menu_feed, menu);
         super.onCreateOptionsMenu(menu, inflater);
     }
 
+    @Override
+    public void onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        menu.findItem(R.id.menu_live).setChecked(liveUpdates);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // Handle action bar item clicks here. The action bar will
@@ -492,6 +798,13 @@ public class FeedFragment extends Fragment implements ObservableScrollViewCallba
 
         if (id == R.id.menu_refresh) {
             resetSubmissions();
+        } else if (id == R.id.menu_live) {
+            boolean live = !liveUpdates;
+            item.setChecked(live);
+
+            // The other feeds hear about it through the preference
+            setLiveUpdates(live);
+            PreferenceManager.getDefaultSharedPreferences(getActivity()).edit().putBoolean("live_updates", live).apply();
         }
 
         return super.onOptionsItemSelected(item);
@@ -586,7 +899,10 @@ public class FeedFragment extends Fragment implements ObservableScrollViewCallba
     public void onSaveInstanceState(Bundle savedInstanceState) {
         super.onSaveInstanceState(savedInstanceState);
 
-        // Save data
-        savedInstanceState.putParcelableArrayList("feedItems", feedAdapter.getFeedItems());
+        // The feed goes to the state store, and only its token goes in the Bundle
+        if (!restoringState) {
+            stateStore.save(stateToken, ItemCodec.FEED_ITEMS, feedAdapter.getFeedItems());
+        }
+        savedInstanceState.putString("feedState", stateToken);
     }
 }
\ No newline at end of file
@@ -11,15 +11,15 @@ import android.os.Parcelable;
 public class FeedItem implements Parcelable {
 
     // For more info on these variables, check out the Hacker News FireBase API
-    private Long submissionId; // The unique ID of the submission
+    private long submissionId; // The unique ID of the submission
     private String title; // Title of the submission
-    private String by; // Author of the submission
+    private int by; // Author of the submission, as a SymbolTable symbol
     private String text; // Submission text
     private long score; // Number of votes of the submission
     private long descendants; // Number of comments of the submission
 
-    private String time; // Time the submission was posted
-    private String shortUrl; // Domain the submission links to
+    private long timestamp; // Time the submission was posted, in epoch seconds
+    private int shortUrl; // Domain the submission links to, as a SymbolTable symbol
     private String longUrl; // Full URL the submission links to
 
     // Marked transient so they won't get included in the bundle
@@ -30,12 +30,11 @@ public class FeedItem implements Parcelable {
     private int color;
 
     public FeedItem(){
-        this.submissionId = 0L;
+        this.submissionId = 0;
         this.title = null;
         this.score = 0;
         this.descendants = 0;
-        this.time = null;
-        this.shortUrl = null;
+        this.shortUrl = SymbolTable.NONE;
         this.longUrl = null;
         this.thumbnail = null;
         this.textDrawable = null;
@@ -44,11 +43,11 @@ public class FeedItem implements Parcelable {
         // Our primary color, hax to get around fragment lifecycles
     }
 
-    public Long getSubmissionId() {
+    public long getSubmissionId() {
         return submissionId;
     }
 
-    public void setSubmissionId(Long submissionId) {
+    public void setSubmissionId(long submissionId) {
         this.submissionId = submissionId;
     }
 
@@ -69,11 +68,15 @@ public class FeedItem implements Parcelable {
     }
 
     public String getBy() {
+        return SymbolTable.get(by);
+    }
+
+    public int getBySymbol() {
         return by;
     }
 
     public void setBy(String by) {
-        this.by = by;
+        this.by = SymbolTable.intern(by);
     }
 
     public long getScore() {
@@ -84,20 +87,24 @@ public class FeedItem implements Parcelable {
         this.score = score;
     }
 
-    public String getTime() {
-        return time;
+    public long getTimestamp() {
+        return timestamp;
     }
 
-    public void setTime(String time) {
-        this.time = time;
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
     }
 
     public String getShortUrl() {
+        return SymbolTable.get(shortUrl);
+    }
+
+    public int getShortUrlSymbol() {
         return shortUrl;
     }
 
     public void setShortUrl(String shortUrl) {
-        this.shortUrl = shortUrl;
+        this.shortUrl = SymbolTable.intern(shortUrl);
     }
 
     public String getLongUrl() {
@@ -153,38 +160,15 @@ public class FeedItem implements Parcelable {
         return 0;
     }
 
+    // Parcelled in the compact ItemCodec format
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeValue(this.submissionId);
-        dest.writeString(this.title);
-        dest.writeString(this.by);
-        dest.writeString(this.text);
-        dest.writeLong(this.score);
-        dest.writeLong(this.descendants);
-        dest.writeString(this.time);
-        dest.writeString(this.shortUrl);
-        dest.writeString(this.longUrl);
-        dest.writeString(this.letter);
-        dest.writeInt(this.color);
-    }
-
-    protected FeedItem(Parcel in) {
-        this.submissionId = (Long) in.readValue(Long.class.getClassLoader());
-        this.title = in.readString();
-        this.by = in.readString();
-        this.text = in.readString();
-        this.score = in.readLong();
-        this.descendants = in.readLong();
-        this.time = in.readString();
-        this.shortUrl = in.readString();
-        this.longUrl = in.readString();
-        this.letter = in.readString();
-        this.color = in.readInt();
+        dest.writeByteArray(ItemCodec.encode(ItemCodec.FEED_ITEMS, this));
     }
 
     public static final Creator<FeedItem> CREATOR = new Creator<FeedItem>() {
         public FeedItem createFromParcel(Parcel source) {
-            return new FeedItem(source);
+            return ItemCodec.decode(ItemCodec.FEED_ITEMS, source.createByteArray());
         }
 
         public FeedItem[] newArray(int size) {
@@ -0,0 +1,370 @@
+package co.adrianblan.cheddar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// List of comments in the order they are shown, which can insert anywhere and find a comment's position in O(log n)
+// It's a treap ordered by position, where every node knows the size of its subtree and its parent
+// The position of a comment is found by walking from its node up to the root
+// Every comment also counts how many collapsed comments it's hidden below, and only those at zero are visible
+// Collapsing adds one to the whole range of replies at once, and is only pushed down the tree when needed
+// The comments themselves are rows in a CommentColumns, the tree only keeps the row numbers
+public class IndexedCommentList {
+
+    private static class Node {
+        final int row;
+        final int hierarchy;
+        final int priority;
+        int size = 1;
+        Node left, right, parent;
+
+        // The smallest hierarchy in the subtree, for finding where a comment's replies end
+        int minHierarchy;
+
+        // Number of collapsed comments above this one, and the smallest such number in the subtree
+        // The count of nodes at the minimum tells how many are visible when the minimum is zero
+        int hiddenBy;
+        int minHiddenBy;
+        int countMin = 1;
+
+        // Amount which still has to be added to the hiddenBy of everything below
+        int pending;
+
+        Node(int row, int hierarchy, int priority, int hiddenBy) {
+            this.row = row;
+            this.hierarchy = hierarchy;
+            this.priority = priority;
+            this.hiddenBy = hiddenBy;
+            this.minHiddenBy = hiddenBy;
+            this.minHierarchy = hierarchy;
+        }
+    }
+
+    private final Random random = new Random();
+    private final CommentColumns columns;
+
+    // The node of every row, indexed by row
+    private Node[] nodes;
+    private Node root;
+
+    // Results of the last split, to avoid allocating a pair for every call
+    private Node splitLeft, splitRight;
+
+    public IndexedCommentList() {
+        columns = new CommentColumns();
+        nodes = new Node[16];
+    }
+
+    // Copies a list, hiding the replies to the comments which are collapsed
+    public IndexedCommentList(List<Comment> comments) {
+
+        columns = new CommentColumns(comments.size());
+        nodes = new Node[Math.max(1, comments.size())];
+
+        // Hierarchies of the collapsed comments above the current one
+        ArrayList<Integer> collapsed = new ArrayList<>();
+
+        for (Comment c : comments) {
+            while (!collapsed.isEmpty() && collapsed.get(collapsed.size() - 1) >= c.getHierarchy()) {
+                collapsed.remove(collapsed.size() - 1);
+            }
+
+            add(size(), c, collapsed.size());
+
+            if (c.hasHideChildren()) {
+                collapsed.add(c.getHierarchy());
+            }
+        }
+    }
+
+    public int size() {
+        return size(root);
+    }
+
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    // The rows the comments are stored in
+    public CommentColumns getColumns() {
+        return columns;
+    }
+
+    // Appends the comment, and returns its row
+    public int add(Comment c) {
+        return add(size(), c, 0);
+    }
+
+    // Inserts the comment so that it ends up at the given position, and returns its row
+    // hiddenBy is the number of collapsed comments it's a reply to
+    public int add(int index, Comment c, int hiddenBy) {
+
+        if (index < 0 || index > size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+
+        int row = columns.add(c);
+
+        if (row == nodes.length) {
+            nodes = Arrays.copyOf(nodes, nodes.length * 2);
+        }
+
+        Node n = new Node(row, c.getHierarchy(), random.nextInt(), hiddenBy);
+        nodes[row] = n;
+
+        split(root, index);
+        Node right = splitRight;
+        root = merge(merge(splitLeft, n), right);
+        root.parent = null;
+
+        return row;
+    }
+
+    // Returns the row of the comment at the given position
+    public int getRow(int index) {
+
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+
+        Node n = root;
+        while (true) {
+            int left = size(n.left);
+
+            if (index < left) {
+                n = n.left;
+            } else if (index == left) {
+                return n.row;
+            } else {
+                index -= left + 1;
+                n = n.right;
+            }
+        }
+    }
+
+    // Returns the position of the row, or -1 if it isn't in the list
+    public int indexOf(int row) {
+
+        Node n = row >= 0 && row < nodes.length ? nodes[row] : null;
+
+        if (n == null) {
+            return -1;
+        }
+
+        int index = size(n.left);
+
+        // Everything to the left of the path up to the root comes before us
+        while (n.parent != null) {
+            if (n.parent.right == n) {
+                index += size(n.parent.left) + 1;
+            }
+            n = n.parent;
+        }
+
+        return index;
+    }
+
+    // Returns the number of comments which are not hidden
+    public int visibleSize() {
+        return visible(root);
+    }
+
+    // Returns the row at the given position, counting only comments which are not hidden
+    public int getVisibleRow(int index) {
+
+        if (index < 0 || index >= visibleSize()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + visibleSize());
+        }
+
+        Node n = root;
+        while (true) {
+            push(n);
+            int left = visible(n.left);
+            int self = n.hiddenBy == 0 ? 1 : 0;
+
+            if (index < left) {
+                n = n.left;
+            } else if (index < left + self) {
+                return n.row;
+            } else {
+                index -= left + self;
+                n = n.right;
+            }
+        }
+    }
+
+    // Returns the number of replies below the comment at the given position, however deep they go
+    public int countDescendants(int index) {
+        int hierarchy = columns.getHierarchy(getRow(index));
+        int end = findAtOrAbove(root, 0, index + 1, hierarchy);
+        return (end >= 0 ? end : size()) - index - 1;
+    }
+
+    // Hides or reveals all replies to the comment at the given position
+    // Replies which are also below another collapsed comment stay hidden
+    // Returns the number of replies
+    public int setCollapsed(int index, boolean collapsed) {
+
+        int descendants = countDescendants(index);
+
+        if (descendants > 0) {
+            split(root, index + 1);
+            Node left = splitLeft;
+            split(splitRight, descendants);
+            Node middle = splitLeft;
+            Node right = splitRight;
+
+            apply(middle, collapsed ? 1 : -1);
+            root = merge(merge(left, middle), right);
+            root.parent = null;
+        }
+
+        return descendants;
+    }
+
+    public void clear() {
+        root = null;
+        columns.clear();
+        Arrays.fill(nodes, null);
+    }
+
+    // Returns a plain copy of the list, such as for saving it
+    public ArrayList<Comment> toArrayList() {
+        ArrayList<Comment> out = new ArrayList<>(size());
+        collect(root, out);
+        return out;
+    }
+
+    private void collect(Node n, ArrayList<Comment> out) {
+        if (n != null) {
+            collect(n.left, out);
+            out.add(columns.toComment(n.row));
+            collect(n.right, out);
+        }
+    }
+
+    // Returns the first position from the given one with a hierarchy of at most h, or -1 if there is none
+    private static int findAtOrAbove(Node n, int offset, int from, int h) {
+
+        if (n == null || n.minHierarchy > h) {
+            return -1;
+        }
+
+        int index = offset + size(n.left);
+
+        if (from < index) {
+            int found = findAtOrAbove(n.left, offset, from, h);
+            if (found >= 0) {
+                return found;
+            }
+        }
+
+        if (index >= from && n.hierarchy <= h) {
+            return index;
+        }
+
+        return findAtOrAbove(n.right, index + 1, from, h);
+    }
+
+    private static int size(Node n) {
+        return n != null ? n.size : 0;
+    }
+
+    private static int visible(Node n) {
+        return n != null && n.minHiddenBy == 0 ? n.countMin : 0;
+    }
+
+    // Adds to the hidden count of the whole subtree, the children get it later
+    private static void apply(Node n, int delta) {
+        if (n != null) {
+            n.hiddenBy += delta;
+            n.minHiddenBy += delta;
+            n.pending += delta;
+        }
+    }
+
+    private static void push(Node n) {
+        if (n.pending != 0) {
+            apply(n.left, n.pending);
+            apply(n.right, n.pending);
+            n.pending = 0;
+        }
+    }
+
+    // Recalculates the summary of a node from its children, and claims them
+    private static void update(Node n) {
+        n.size = 1 + size(n.left) + size(n.right);
+        n.minHierarchy = n.hierarchy;
+        n.minHiddenBy = n.hiddenBy;
+        n.countMin = 1;
+
+        combine(n, n.left);
+        combine(n, n.right);
+    }
+
+    private static void combine(Node n, Node c) {
+
+        if (c == null) {
+            return;
+        }
+
+        c.parent = n;
+        n.minHierarchy = Math.min(n.minHierarchy, c.minHierarchy);
+
+        if (c.minHiddenBy < n.minHiddenBy) {
+            n.minHiddenBy = c.minHiddenBy;
+            n.countMin = c.countMin;
+        } else if (c.minHiddenBy == n.minHiddenBy) {
+            n.countMin += c.countMin;
+        }
+    }
+
+    // Splits the tree into the first k nodes and the rest, stored in splitLeft and splitRight
+    private void split(Node t, int k) {
+
+        if (t == null) {
+            splitLeft = null;
+            splitRight = null;
+            return;
+        }
+
+        push(t);
+
+        if (size(t.left) < k) {
+            split(t.right, k - size(t.left) - 1);
+            t.right = splitLeft;
+            update(t);
+            splitLeft = t;
+        } else {
+            split(t.left, k);
+            t.left = splitRight;
+            update(t);
+            splitRight = t;
+        }
+
+        t.parent = null;
+    }
+
+    private static Node merge(Node a, Node b) {
+
+        if (a == null) {
+            return b;
+        } else if (b == null) {
+            return a;
+        }
+
+        if (a.priority > b.priority) {
+            push(a);
+            a.right = merge(a.right, b);
+            update(a);
+            return a;
+        } else {
+            push(b);
+            b.left = merge(a, b.left);
+            update(b);
+            return b;
+        }
+    }
+}
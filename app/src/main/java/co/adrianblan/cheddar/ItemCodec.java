@@ -0,0 +1,329 @@
+package co.adrianblan.cheddar;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact binary format for feed items and comments, used for parcels and state snapshots
+// Numbers are varints, times are raw epoch seconds, and derived strings such as the letter are not stored
+// Authors and domains repeat a lot, so each one is written once per buffer and referred to by index after that
+// That only pays off for lists, such as state snapshots, a single parcelled item has nothing to share them with
+// The first byte is the version, buffers from another version are rejected instead of misread
+public class ItemCodec {
+
+    public static final int VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Symbols are written as 0 for null, 1 followed by the string the first time, and index + 2 after that
+    private static final int SYMBOL_NULL = 0;
+    private static final int SYMBOL_NEW = 1;
+
+    // Reads and writes one kind of item
+    public interface Format<T> {
+        void write(Writer out, T item);
+        T read(Reader in);
+    }
+
+    public static final Format<FeedItem> FEED_ITEMS = new Format<FeedItem>() {
+        @Override
+        public void write(Writer out, FeedItem f) {
+            out.writeVarLong(f.getSubmissionId());
+            out.writeString(f.getTitle());
+            out.writeSymbol(f.getBy());
+            out.writeString(f.getText());
+            out.writeVarLong(f.getScore());
+            out.writeVarLong(f.getDescendants());
+            out.writeVarLong(f.getTimestamp());
+            out.writeSymbol(f.getShortUrl());
+            out.writeString(f.getLongUrl());
+            out.writeInt(f.getColor());
+        }
+
+        @Override
+        public FeedItem read(Reader in) {
+            FeedItem f = new FeedItem();
+            f.setSubmissionId(in.readVarLong());
+            f.setTitle(in.readString());
+            f.setBy(in.readSymbol());
+            f.setText(in.readString());
+            f.setScore(in.readVarLong());
+            f.setDescendants(in.readVarLong());
+            f.setTimestamp(in.readVarLong());
+            f.setShortUrl(in.readSymbol());
+            f.setLongUrl(in.readString());
+            f.setColor(in.readInt());
+
+            // Derived again instead of being stored
+            f.setLetter(ItemDecoder.getLetter(f.getShortUrl()));
+            return f;
+        }
+    };
+
+    public static final Format<Comment> COMMENTS = new Format<Comment>() {
+        @Override
+        public void write(Writer out, Comment c) {
+            out.writeVarLong(c.getId());
+            out.writeSymbol(c.getBy());
+            out.writeString(c.getBody());
+            out.writeVarLong(c.getTimestamp());
+            out.writeVarLong(c.getHierarchy());
+            out.writeVarLong(c.getHiddenChildren());
+            out.writeByte(c.hasHideChildren() ? 1 : 0);
+        }
+
+        @Override
+        public Comment read(Reader in) {
+            Comment c = new Comment();
+            c.setId(in.readVarLong());
+            c.setBy(in.readSymbol());
+            c.setBody(in.readString());
+            c.setTimestamp(in.readVarLong());
+            c.setHierarchy((int) in.readVarLong());
+            c.setHiddenChildren((int) in.readVarLong());
+            c.setHideChildren(in.readByte() != 0);
+            return c;
+        }
+    };
+
+    // Encodes a single item, such as for a parcel
+    public static <T> byte[] encode(Format<T> format, T item) {
+        Writer out = new Writer(64);
+        out.writeByte(VERSION);
+        format.write(out, item);
+        return out.toByteArray();
+    }
+
+    // Decodes a single item, throws if the buffer is from another version or is broken
+    public static <T> T decode(Format<T> format, byte[] data) {
+        Reader in = new Reader(data);
+        checkVersion(in);
+        return format.read(in);
+    }
+
+    // Encodes a list of items, sharing the symbols between all of them
+    public static <T> byte[] encodeList(Format<T> format, List<T> items) {
+
+        Writer out = new Writer(64 * items.size() + 8);
+        out.writeByte(VERSION);
+        out.writeVarLong(items.size());
+
+        for (T item : items) {
+            format.write(out, item);
+        }
+
+        return out.toByteArray();
+    }
+
+    // Decodes a list of items, or returns null if the buffer is from another version or is broken
+    public static <T> ArrayList<T> decodeList(Format<T> format, byte[] data) {
+
+        try {
+            Reader in = new Reader(data);
+            checkVersion(in);
+
+            // Every item takes at least a byte, so a larger count can only come from a broken buffer
+            long count = in.readVarLong();
+            if (count < 0 || count > in.remaining()) {
+                throw new IllegalArgumentException("Bad count " + count);
+            }
+
+            ArrayList<T> items = new ArrayList<>((int) count);
+
+            for (int i = 0; i < count; i++) {
+                items.add(format.read(in));
+            }
+
+            return items;
+        } catch (IllegalArgumentException e) {
+            System.err.println("Could not decode items! " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void checkVersion(Reader in) {
+        int version = in.readByte();
+
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unknown version " + version);
+        }
+    }
+
+    public static class Writer {
+
+        private byte[] buffer;
+        private int length;
+
+        // Symbols we have written, by their index
+        private final Map<String, Integer> symbols;
+
+        public Writer(int capacity) {
+            buffer = new byte[Math.max(16, capacity)];
+            symbols = new HashMap<>();
+        }
+
+        public void writeByte(int b) {
+            ensure(1);
+            buffer[length++] = (byte) b;
+        }
+
+        public void writeInt(int v) {
+            ensure(4);
+            buffer[length++] = (byte) (v >>> 24);
+            buffer[length++] = (byte) (v >>> 16);
+            buffer[length++] = (byte) (v >>> 8);
+            buffer[length++] = (byte) v;
+        }
+
+        // Seven bits at a time, so that small numbers take a single byte
+        // Negative numbers are valid but take ten bytes, none of our fields are negative
+        public void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buffer[length++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buffer[length++] = (byte) v;
+        }
+
+        // Written as its length + 1 in UTF-8, so that 0 can mean null
+        public void writeString(String s) {
+
+            if (s == null) {
+                writeVarLong(0);
+                return;
+            }
+
+            byte[] bytes = s.getBytes(UTF_8);
+            writeVarLong(bytes.length + 1);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, length, bytes.length);
+            length += bytes.length;
+        }
+
+        // A string which is likely to repeat, written in full only the first time
+        public void writeSymbol(String s) {
+
+            if (s == null) {
+                writeVarLong(SYMBOL_NULL);
+                return;
+            }
+
+            Integer index = symbols.get(s);
+
+            if (index != null) {
+                writeVarLong(index + 2);
+                return;
+            }
+
+            symbols.put(s, symbols.size());
+            writeVarLong(SYMBOL_NEW);
+            writeString(s);
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buffer, length);
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+            }
+        }
+    }
+
+    public static class Reader {
+
+        private final byte[] buffer;
+        private int position;
+
+        // Symbols we have read, in the order they were written
+        private final ArrayList<String> symbols;
+
+        public Reader(byte[] buffer) {
+            this.buffer = buffer;
+            symbols = new ArrayList<>();
+        }
+
+        public int readByte() {
+            require(1);
+            return buffer[position++] & 0xFF;
+        }
+
+        public int readInt() {
+            require(4);
+            return ((buffer[position++] & 0xFF) << 24) | ((buffer[position++] & 0xFF) << 16)
+                    | ((buffer[position++] & 0xFF) << 8) | (buffer[position++] & 0xFF);
+        }
+
+        public long readVarLong() {
+
+            long v = 0;
+
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                v |= (long) (b & 0x7F) << shift;
+
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+
+            throw new IllegalArgumentException("Malformed varint at " + position);
+        }
+
+        public String readString() {
+
+            long length = readVarLong() - 1;
+
+            if (length < 0) {
+                return null;
+            }
+
+            require(length);
+            String s = new String(buffer, position, (int) length, UTF_8);
+            position += (int) length;
+            return s;
+        }
+
+        // Repeated symbols come back as the same instance
+        public String readSymbol() {
+
+            long tag = readVarLong();
+
+            if (tag == SYMBOL_NULL) {
+                return null;
+            }
+
+            if (tag == SYMBOL_NEW) {
+                String s = readString();
+                symbols.add(s);
+                return s;
+            }
+
+            long index = tag - 2;
+            if (index >= symbols.size()) {
+                throw new IllegalArgumentException("Unknown symbol " + index);
+            }
+
+            return symbols.get((int) index);
+        }
+
+        public int remaining() {
+            return buffer.length - position;
+        }
+
+        private void require(long count) {
+            if (count > buffer.length - position) {
+                throw new IllegalArgumentException("Truncated at " + position);
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package co.adrianblan.cheddar;
+
+// Turns raw Hacker News items into feed items and comments
+// Fields are read one at a time from an ItemSource, so there is no intermediate map or URL object
+public class ItemDecoder {
+
+    // The hacker news submissions don't technically have an url, so we cheat
+    public static final String HACKER_NEWS_URL = "Hacker News";
+    public static final String HACKER_NEWS_LETTER = "HN";
+
+    // Returns a new feed item, without any thumbnail or TextDrawable
+    public static FeedItem decodeFeedItem(long submissionId, ItemSource src) {
+
+        FeedItem f = new FeedItem();
+
+        f.setSubmissionId(submissionId);
+
+        // Set titles and other data
+        f.setTitle(src.getString("title"));
+        f.setText(src.getString("text"));
+        f.setBy(src.getString("by"));
+        f.setScore(src.getLong("score", 0));
+        f.setTimestamp(src.getLong("time", 0));
+
+        // Jobs stories don't have any descendants
+        f.setDescendants(src.getLong("descendants", 0));
+
+        String url = src.getString("url");
+        String host = getHost(url);
+
+        // Hacker News site urls are null
+        if (host != null) {
+            String domain = host.startsWith("www.") ? host.substring(4) : host;
+            f.setShortUrl(domain);
+            f.setLongUrl(url);
+        } else {
+            if (url != null) {
+                System.err.println("Malformed url: " + url);
+            }
+
+            f.setShortUrl(HACKER_NEWS_URL);
+        }
+
+        f.setLetter(getLetter(f.getShortUrl()));
+
+        return f;
+    }
+
+    // Returns a new comment, or null if it has been deleted
+    public static Comment decodeComment(long id, ItemSource src) {
+
+        String text = src.getString("text");
+
+        if (text == null) {
+            return null;
+        }
+
+        Comment com = new Comment();
+        com.setId(id);
+        com.setBy(src.getString("by"));
+        com.setBody(text);
+        com.setTimestamp(src.getLong("time", 0));
+
+        return com;
+    }
+
+    // Returns the letter shown in the TextDrawable for a domain
+    public static String getLetter(String shortUrl) {
+
+        if (shortUrl == null || shortUrl.isEmpty()) {
+            return "?";
+        }
+
+        return shortUrl.equals(HACKER_NEWS_URL) ? HACKER_NEWS_LETTER : shortUrl.substring(0, 1);
+    }
+
+    // Returns the child IDs of an item, or null if there are none
+    public static long[] decodeKids(ItemSource src) {
+        return src.getLongArray("kids");
+    }
+
+    // Extracts the host from an absolute url, or returns null if there isn't one
+    public static String getHost(String url) {
+
+        if (url == null) {
+            return null;
+        }
+
+        int start = url.indexOf("://");
+
+        if (start <= 0) {
+            return null;
+        }
+
+        start += 3;
+
+        // The authority ends at the path, query or fragment
+        int end = start;
+        while (end < url.length()) {
+            char c = url.charAt(end);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            end++;
+        }
+
+        // Skip any user info before the host, it may contain a ':' of its own
+        int at = url.lastIndexOf('@', end - 1);
+        if (at >= start) {
+            start = at + 1;
+        }
+
+        // Then cut off the port
+        int colon = url.indexOf(':', start);
+        if (colon >= 0 && colon < end) {
+            end = colon;
+        }
+
+        if (start >= end) {
+            return null;
+        }
+
+        return url.substring(start, end);
+    }
+}
@@ -0,0 +1,184 @@
+package co.adrianblan.cheddar;
+
+import com.firebase.client.DataSnapshot;
+import com.firebase.client.Firebase;
+import com.firebase.client.FirebaseError;
+import com.firebase.client.ValueEventListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Fetches Hacker News items in windows, with a cap on how many requests are in flight at once
+// Requests are queued, so the next window starts downloading while the current one is rendered
+// Windows are delivered as soon as they are complete, tagged with the rank of each item
+// All callbacks are delivered on the main thread by Firebase, so no locking is needed
+public class ItemFetcher {
+
+    public interface Listener {
+        // Called once per window, with the snapshots in the same order as the requested IDs
+        // Items which could not be fetched are null
+        void onWindowLoaded(int[] ranks, List<Long> ids, DataSnapshot[] snapshots);
+    }
+
+    private final Firebase itemUrl;
+    private final int windowSize;
+    private final int maxInFlight;
+    private final Listener listener;
+
+    // Windows which have not been delivered yet
+    private final ArrayList<Window> openWindows;
+
+    // Requests which are waiting for a free slot
+    private final LinkedList<Request> pending;
+
+    // Requests on their way, including cancelled ones, since those still hold a connection until they answer
+    private int inFlight;
+
+    // Incremented on cancel, so that late callbacks from old requests are dropped
+    private int generation;
+
+    private class Window {
+        final int[] ranks;
+        final List<Long> ids;
+        final DataSnapshot[] snapshots;
+        int remaining;
+
+        Window(int[] ranks, List<Long> ids) {
+            this.ranks = ranks;
+            this.ids = ids;
+            this.snapshots = new DataSnapshot[ids.size()];
+            this.remaining = ids.size();
+        }
+    }
+
+    private class Request {
+        final Window window;
+        final int index;
+
+        Request(Window window, int index) {
+            this.window = window;
+            this.index = index;
+        }
+    }
+
+    public ItemFetcher(Firebase itemUrl, int windowSize, int maxInFlight, Listener listener) {
+        this.itemUrl = itemUrl;
+        this.windowSize = windowSize;
+        this.maxInFlight = maxInFlight;
+        this.listener = listener;
+
+        openWindows = new ArrayList<>();
+        pending = new LinkedList<>();
+    }
+
+    // Queues a contiguous run of IDs, the rank is the position of the first ID in the full submission list
+    public void fetch(int firstRank, List<Long> ids) {
+        int[] ranks = new int[ids.size()];
+        for (int i = 0; i < ranks.length; i++) {
+            ranks[i] = firstRank + i;
+        }
+        fetch(ranks, ids);
+    }
+
+    // Splits the IDs into windows and queues them for fetching, each ID is tagged with its own rank
+    public void fetch(int[] ranks, List<Long> ids) {
+        for (int start = 0; start < ids.size(); start += windowSize) {
+            int end = Math.min(start + windowSize, ids.size());
+            Window w = new Window(Arrays.copyOfRange(ranks, start, end), new ArrayList<>(ids.subList(start, end)));
+            openWindows.add(w);
+
+            for (int i = 0; i < w.ids.size(); i++) {
+                pending.add(new Request(w, i));
+            }
+        }
+
+        dispatch();
+    }
+
+    // Drops all queued windows and ignores any responses which are still on their way
+    public void cancel() {
+        generation++;
+        openWindows.clear();
+        pending.clear();
+    }
+
+    public boolean isIdle() {
+        return openWindows.isEmpty();
+    }
+
+    // Moves the items which haven't been delivered to new ranks, such as when the submission list has been reordered
+    // Items which aren't in the map are still fetched, but delivered with a rank of -1
+    // Returns the IDs which were moved, so that they aren't fetched twice
+    public Set<Long> rerank(Map<Long, Integer> ranks) {
+
+        Set<Long> moved = new HashSet<>();
+
+        for (Window w : openWindows) {
+            for (int i = 0; i < w.ids.size(); i++) {
+                Integer rank = ranks.get(w.ids.get(i));
+
+                if (rank != null) {
+                    w.ranks[i] = rank;
+                    moved.add(w.ids.get(i));
+                } else {
+                    w.ranks[i] = -1;
+                }
+            }
+        }
+
+        return moved;
+    }
+
+    // Starts as many pending requests as we have free slots for
+    private void dispatch() {
+        while (inFlight < maxInFlight && !pending.isEmpty()) {
+            start(pending.removeFirst());
+        }
+    }
+
+    private void start(final Request r) {
+
+        final int requestGeneration = generation;
+        inFlight++;
+
+        itemUrl.child(Long.toString(r.window.ids.get(r.index))).addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot snapshot) {
+                finish(requestGeneration, r, snapshot);
+            }
+
+            @Override
+            public void onCancelled(FirebaseError firebaseError) {
+                System.err.println("Could not retrieve post! " + firebaseError);
+                finish(requestGeneration, r, null);
+            }
+        });
+    }
+
+    private void finish(int requestGeneration, Request r, DataSnapshot snapshot) {
+
+        inFlight--;
+
+        // The request belongs to something we have already cancelled, but its slot is free now
+        if (requestGeneration != generation) {
+            dispatch();
+            return;
+        }
+
+        r.window.snapshots[r.index] = snapshot;
+        r.window.remaining--;
+
+        // Fill the freed slot before we hand anything to the UI
+        dispatch();
+
+        if (r.window.remaining == 0) {
+            openWindows.remove(r.window);
+            listener.onWindowLoaded(r.window.ranks, r.window.ids, r.window.snapshots);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package co.adrianblan.cheddar;
+
+// Read access to the fields of a single Hacker News item, no matter where it came from
+// Lets the ItemDecoder work the same on Firebase snapshots, raw JSON and our local store
+public interface ItemSource {
+
+    // Whether the field exists and isn't null
+    boolean has(String field);
+
+    // Returns the field as a long, or the fallback if it doesn't exist
+    long getLong(String field, long fallback);
+
+    // Returns the field as a string, or null if it doesn't exist
+    String getString(String field);
+
+    // Returns the field as an array of longs, or null if it doesn't exist
+    long[] getLongArray(String field);
+}
@@ -0,0 +1,237 @@
+package co.adrianblan.cheddar;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+// Local copy of the Hacker News items and story lists we have seen, keyed by their ID
+// Items go in and come out as an ItemSource, so cached and fresh data go through the same decoder.
+// Reads are blocking and must be done off the main thread, writes are queued on a single background thread.
+public class ItemStore extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "items.db";
+    private static final int DATABASE_VERSION = 1;
+
+    // Items we haven't seen for a week are thrown away
+    private static final long MAX_AGE = TimeUnit.DAYS.toMillis(7);
+
+    private static final String[] ITEM_COLUMNS = {"id", "by", "title", "text", "url", "score", "descendants", "time", "kids"};
+
+    private static ItemStore instance;
+
+    private final Executor writer;
+
+    public static synchronized ItemStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new ItemStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ItemStore(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        writer = TaskScheduler.getInstance().executor(TaskScheduler.Lane.SERIAL, TaskScheduler.PRIORITY_BACKGROUND);
+
+        // Clean up once per process, before anyone starts reading
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                prune();
+            }
+        });
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE items (" +
+                "id INTEGER PRIMARY KEY, " +
+                "by TEXT, " +
+                "title TEXT, " +
+                "text TEXT, " +
+                "url TEXT, " +
+                "score INTEGER, " +
+                "descendants INTEGER, " +
+                "time INTEGER, " +
+                "kids TEXT, " +
+                "fetched INTEGER NOT NULL)");
+
+        db.execSQL("CREATE TABLE lists (" +
+                "name TEXT PRIMARY KEY, " +
+                "ids TEXT NOT NULL, " +
+                "fetched INTEGER NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // It's only a cache, so we can just start over
+        db.execSQL("DROP TABLE IF EXISTS items");
+        db.execSQL("DROP TABLE IF EXISTS lists");
+        onCreate(db);
+    }
+
+    // Stores a list of story IDs, such as /topstories
+    public void putIds(final String name, List<Long> ids) {
+
+        final String joined = TextUtils.join(",", ids);
+
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                ContentValues values = new ContentValues();
+                values.put("name", name);
+                values.put("ids", joined);
+                values.put("fetched", System.currentTimeMillis());
+                getWritableDatabase().insertWithOnConflict("lists", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+        });
+    }
+
+    // Returns the stored list of story IDs, or null if we don't have it
+    public ArrayList<Long> getIds(String name) {
+
+        Cursor c = getReadableDatabase().query("lists", new String[]{"ids"}, "name = ?", new String[]{name}, null, null, null);
+
+        try {
+            if (c.moveToFirst()) {
+                return splitIds(c.getString(0));
+            }
+            return null;
+        } finally {
+            c.close();
+        }
+    }
+
+    // Stores a single item as retrieved from the API
+    public void putItem(long id, ItemSource item) {
+        Map<Long, ItemSource> items = new HashMap<>();
+        items.put(id, item);
+        putItems(items);
+    }
+
+    // Stores several items in a single transaction
+    public void putItems(Map<Long, ItemSource> items) {
+
+        if (items.isEmpty()) {
+            return;
+        }
+
+        // The fields are read right away, so the source doesn't have to outlive this call
+        long now = System.currentTimeMillis();
+        final ArrayList<ContentValues> rows = new ArrayList<>(items.size());
+
+        for (Map.Entry<Long, ItemSource> e : items.entrySet()) {
+            rows.add(toValues(e.getKey(), e.getValue(), now));
+        }
+
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = getWritableDatabase();
+
+                db.beginTransaction();
+                try {
+                    for (ContentValues values : rows) {
+                        db.insertWithOnConflict("items", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    // Returns a single item, or null if we don't have it
+    public ItemSource getItem(long id) {
+        ArrayList<Long> ids = new ArrayList<>(1);
+        ids.add(id);
+        return getItems(ids).get(id);
+    }
+
+    // Returns all the items we have out of the given IDs, keyed by ID
+    public Map<Long, ItemSource> getItems(List<Long> ids) {
+
+        Map<Long, ItemSource> items = new HashMap<>();
+
+        if (ids.isEmpty()) {
+            return items;
+        }
+
+        String selection = "id IN (" + TextUtils.join(",", ids) + ")";
+        Cursor c = getReadableDatabase().query("items", ITEM_COLUMNS, selection, null, null, null, null);
+
+        try {
+            while (c.moveToNext()) {
+                items.put(c.getLong(0), new CursorItemSource(c, ITEM_COLUMNS));
+            }
+        } finally {
+            c.close();
+        }
+
+        return items;
+    }
+
+    // Removes everything which hasn't been refreshed in a while
+    private void prune() {
+        String[] cutoff = {Long.toString(System.currentTimeMillis() - MAX_AGE)};
+        SQLiteDatabase db = getWritableDatabase();
+        db.delete("items", "fetched < ?", cutoff);
+        db.delete("lists", "fetched < ?", cutoff);
+    }
+
+    private static ContentValues toValues(long id, ItemSource item, long fetched) {
+
+        ContentValues values = new ContentValues();
+        values.put("id", id);
+        values.put("by", item.getString("by"));
+        values.put("title", item.getString("title"));
+        values.put("text", item.getString("text"));
+        values.put("url", item.getString("url"));
+        values.put("fetched", fetched);
+
+        for (String field : new String[]{"score", "descendants", "time"}) {
+            if (item.has(field)) {
+                values.put(field, item.getLong(field, 0));
+            }
+        }
+
+        long[] kids = item.getLongArray("kids");
+        if (kids != null) {
+            StringBuilder joined = new StringBuilder();
+            for (int i = 0; i < kids.length; i++) {
+                if (i > 0) {
+                    joined.append(',');
+                }
+                joined.append(kids[i]);
+            }
+            values.put("kids", joined.toString());
+        }
+
+        return values;
+    }
+
+    private static ArrayList<Long> splitIds(String joined) {
+
+        ArrayList<Long> ids = new ArrayList<>();
+
+        if (joined.isEmpty()) {
+            return ids;
+        }
+
+        for (String id : joined.split(",")) {
+            ids.add(Long.parseLong(id));
+        }
+
+        return ids;
+    }
+}
@@ -0,0 +1,55 @@
+package co.adrianblan.cheddar;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Reads item fields from the raw JSON returned by the Hacker News REST API
+// Also handy for feeding the ItemDecoder with recorded items in tests and benchmarks
+public class JsonItemSource implements ItemSource {
+
+    private final JSONObject json;
+
+    public JsonItemSource(JSONObject json) {
+        this.json = json;
+    }
+
+    public JsonItemSource(String json) throws JSONException {
+        this(new JSONObject(json));
+    }
+
+    @Override
+    public boolean has(String field) {
+        return !json.isNull(field);
+    }
+
+    @Override
+    public long getLong(String field, long fallback) {
+        return json.optLong(field, fallback);
+    }
+
+    @Override
+    public String getString(String field) {
+        if (json.isNull(field)) {
+            return null;
+        }
+        return json.optString(field);
+    }
+
+    @Override
+    public long[] getLongArray(String field) {
+        JSONArray array = json.optJSONArray(field);
+
+        if (array == null) {
+            return null;
+        }
+
+        long[] values = new long[array.length()];
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = array.optLong(i);
+        }
+
+        return values;
+    }
+}
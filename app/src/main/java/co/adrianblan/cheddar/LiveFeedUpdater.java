@@ -0,0 +1,129 @@
+package co.adrianblan.cheddar;
+
+import com.firebase.client.DataSnapshot;
+import com.firebase.client.Firebase;
+import com.firebase.client.FirebaseError;
+import com.firebase.client.ValueEventListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Keeps persistent Firebase listeners on a story list and on the items currently on screen
+// Only the visible items are subscribed, so scrolling drops the listeners for rows which leave the screen
+// All callbacks are delivered on the main thread by Firebase
+public class LiveFeedUpdater {
+
+    public interface Listener {
+        // Called when the list of story IDs has changed
+        void onIdsChanged(ArrayList<Long> ids);
+
+        // Called when one of the subscribed items has changed
+        void onItemChanged(long id, ItemSource item);
+    }
+
+    private final Firebase storiesUrl;
+    private final Firebase itemUrl;
+    private final Listener listener;
+
+    private ValueEventListener idsListener;
+    private final Map<Long, ValueEventListener> itemListeners;
+
+    public LiveFeedUpdater(Firebase storiesUrl, Firebase itemUrl, Listener listener) {
+        this.storiesUrl = storiesUrl;
+        this.itemUrl = itemUrl;
+        this.listener = listener;
+
+        itemListeners = new HashMap<>();
+    }
+
+    public boolean isStarted() {
+        return idsListener != null;
+    }
+
+    // Starts listening to the story list
+    public void start() {
+
+        if (idsListener != null) {
+            return;
+        }
+
+        idsListener = storiesUrl.addValueEventListener(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot snapshot) {
+                ArrayList<Long> ids = (ArrayList<Long>) snapshot.getValue();
+
+                if (ids != null) {
+                    listener.onIdsChanged(ids);
+                }
+            }
+
+            @Override
+            public void onCancelled(FirebaseError firebaseError) {
+                System.err.println("Lost live posts! " + firebaseError);
+            }
+        });
+    }
+
+    // Removes every listener
+    public void stop() {
+
+        if (idsListener != null) {
+            storiesUrl.removeEventListener(idsListener);
+            idsListener = null;
+        }
+
+        for (Map.Entry<Long, ValueEventListener> e : itemListeners.entrySet()) {
+            itemUrl.child(Long.toString(e.getKey())).removeEventListener(e.getValue());
+        }
+        itemListeners.clear();
+    }
+
+    // Subscribes to the given items, and unsubscribes from any items which are no longer visible
+    public void setVisible(List<Long> ids) {
+
+        if (idsListener == null) {
+            return;
+        }
+
+        Set<Long> visible = new HashSet<>(ids);
+
+        Iterator<Map.Entry<Long, ValueEventListener>> it = itemListeners.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, ValueEventListener> e = it.next();
+
+            if (!visible.contains(e.getKey())) {
+                itemUrl.child(Long.toString(e.getKey())).removeEventListener(e.getValue());
+                it.remove();
+            }
+        }
+
+        for (final Long id : visible) {
+            if (itemListeners.containsKey(id)) {
+                continue;
+            }
+
+            ValueEventListener l = itemUrl.child(Long.toString(id)).addValueEventListener(new ValueEventListener() {
+                @Override
+                public void onDataChange(DataSnapshot snapshot) {
+                    ItemSource item = SnapshotItemSource.of(snapshot);
+
+                    if (item != null) {
+                        listener.onItemChanged(id, item);
+                    }
+                }
+
+                @Override
+                public void onCancelled(FirebaseError firebaseError) {
+                    System.err.println("Lost live post! " + firebaseError);
+                }
+            });
+
+            itemListeners.put(id, l);
+        }
+    }
+}
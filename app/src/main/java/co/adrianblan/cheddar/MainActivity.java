@@ -104,9 +104,9 @@ public class MainActivity extends AppCompatActivity {
         }
 
         ImageLoaderConfiguration config = new ImageLoaderConfiguration.Builder(this)
-                .threadPriority(Thread.NORM_PRIORITY - 2)
                 .memoryCache(new WeakMemoryCache())
-                .threadPoolSize(20)
+                .taskExecutor(TaskScheduler.getInstance().executor(TaskScheduler.Lane.NETWORK, TaskScheduler.PRIORITY_VISIBLE))
+                .taskExecutorForCachedImages(TaskScheduler.getInstance().executor(TaskScheduler.Lane.DECODE, TaskScheduler.PRIORITY_VISIBLE))
                 .imageDownloader(new BaseImageDownloader(this))
                 .build();
 
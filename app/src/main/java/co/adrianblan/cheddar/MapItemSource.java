@@ -0,0 +1,58 @@
+package co.adrianblan.cheddar;
+
+import java.util.List;
+import java.util.Map;
+
+// Reads item fields from a plain map, which is handy for tests and benchmarks
+// Arrays may be given either as long[] or as a list of numbers
+public class MapItemSource implements ItemSource {
+
+    private final Map<String, Object> map;
+
+    public MapItemSource(Map<String, Object> map) {
+        this.map = map;
+    }
+
+    @Override
+    public boolean has(String field) {
+        return map.get(field) != null;
+    }
+
+    @Override
+    public long getLong(String field, long fallback) {
+        Object value = map.get(field);
+
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return fallback;
+    }
+
+    @Override
+    public String getString(String field) {
+        Object value = map.get(field);
+
+        if (value instanceof String) {
+            return (String) value;
+        }
+        return null;
+    }
+
+    @Override
+    public long[] getLongArray(String field) {
+        Object value = map.get(field);
+
+        if (value instanceof long[]) {
+            return (long[]) value;
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            long[] values = new long[list.size()];
+
+            for (int i = 0; i < values.length; i++) {
+                values[i] = ((Number) list.get(i)).longValue();
+            }
+            return values;
+        }
+        return null;
+    }
+}
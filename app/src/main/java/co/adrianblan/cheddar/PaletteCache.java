@@ -0,0 +1,150 @@
+package co.adrianblan.cheddar;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.support.v7.graphics.Palette;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The color we pick from the favicon of each host, kept in shared preferences
+// The colors of a host never change, so Palette only has to run the first time we see a host
+// Lookups are safe from any thread, generating colors must be done from the main thread
+public class PaletteCache {
+
+    public interface Callback {
+        // Called with the color of the host, or null if the favicon didn't have any usable colors
+        void onColor(String host, Integer color);
+    }
+
+    private static final String PREFS_NAME = "palette_colors";
+
+    // It's only a cache, so we start over if it grows too large
+    private static final int MAX_HOSTS = 2000;
+
+    private static PaletteCache instance;
+
+    private final SharedPreferences prefs;
+    private final Map<String, Integer> colors;
+
+    // Starting over and loading the stored colors must not overlap, or the loader brings back what was cleared
+    private final Object lock = new Object();
+    private int clears;
+
+    // Hosts we are generating colors for, and everyone waiting for them
+    private final Map<String, ArrayList<Callback>> generating;
+
+    public static synchronized PaletteCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new PaletteCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private PaletteCache(Context context) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        colors = new ConcurrentHashMap<>();
+        generating = new HashMap<>();
+
+        // Read the stored colors in the background, so that starting up doesn't wait for the disk
+        TaskScheduler.getInstance().executor(TaskScheduler.Lane.DECODE, TaskScheduler.PRIORITY_VISIBLE).execute(new Runnable() {
+            @Override
+            public void run() {
+
+                int before;
+                synchronized (lock) {
+                    before = clears;
+                }
+
+                // The disk is read outside the lock, so that generating a color never waits for it
+                Map<String, ?> stored = prefs.getAll();
+
+                synchronized (lock) {
+
+                    // We started over while reading, so what we read is gone
+                    if (clears != before) {
+                        return;
+                    }
+
+                    for (Map.Entry<String, ?> e : stored.entrySet()) {
+                        if (e.getValue() instanceof Integer) {
+                            colors.put(e.getKey(), (Integer) e.getValue());
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    // Returns the color of the host, or null if we haven't seen it yet
+    public Integer get(String host) {
+        return host != null ? colors.get(host) : null;
+    }
+
+    // Picks a color from the favicon of the host, unless we already have one
+    public void generate(final String host, Bitmap favicon, Callback callback) {
+
+        Integer known = colors.get(host);
+
+        if (known != null) {
+            callback.onColor(host, known);
+            return;
+        }
+
+        // Someone is already generating it
+        ArrayList<Callback> waiting = generating.get(host);
+        if (waiting != null) {
+            waiting.add(callback);
+            return;
+        }
+
+        waiting = new ArrayList<>();
+        waiting.add(callback);
+        generating.put(host, waiting);
+
+        // Generate lots of palettes from the favicon asynchronously
+        Palette.from(favicon).generate(new Palette.PaletteAsyncListener() {
+            public void onGenerated(Palette p) {
+
+                List<Palette.Swatch> swatches = p.getSwatches();
+                Palette.Swatch vibrantSwatch = p.getVibrantSwatch();
+                Integer color = null;
+
+                // We want the vibrant palette, if possible, ortherwise darker palettes
+                if (vibrantSwatch != null) {
+                    color = vibrantSwatch.getRgb();
+                } else if (!swatches.isEmpty()) {
+                    color = swatches.get(0).getRgb();
+                }
+
+                if (color != null) {
+                    put(host, color);
+                }
+
+                for (Callback c : generating.remove(host)) {
+                    c.onColor(host, color);
+                }
+            }
+        });
+    }
+
+    private void put(String host, int color) {
+
+        synchronized (lock) {
+            SharedPreferences.Editor editor = prefs.edit();
+
+            if (colors.size() >= MAX_HOSTS) {
+                colors.clear();
+                editor.clear();
+                clears++;
+            }
+
+            colors.put(host, color);
+            editor.putInt(host, color).apply();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package co.adrianblan.cheddar;
+
+import android.os.SystemClock;
+
+// Decides when to fetch the next page of a list, so that it has arrived before the user scrolls to the end
+// The distance we look ahead grows with the scroll speed, and with how long a page usually takes to arrive
+// There is a cap on how many rows we may have requested but not shown yet, so flinging doesn't flood the network
+public class PrefetchScheduler {
+
+    public interface Listener {
+        // Called when the next page should be fetched
+        void onPrefetch();
+    }
+
+    // Until we have measured anything, we guess that a page takes a second
+    private static final long DEFAULT_LATENCY = 1000;
+
+    // How much of the old speed and latency we keep on every new sample
+    private static final float SMOOTHING = 0.7f;
+
+    private final Listener listener;
+
+    // The minimum number of rows we keep loaded below the last visible one, regardless of speed
+    private final int lookahead;
+
+    // The maximum number of rows which may be requested but not shown yet
+    private final int maxPending;
+
+    // Scroll speed in rows per millisecond
+    private float velocity;
+    private int lastFirst = -1;
+    private long lastScrollTime;
+    private int lastVisible;
+
+    // How long a page takes from being requested until it is shown
+    private long latency = DEFAULT_LATENCY;
+    private int awaitedRows = -1;
+    private long requestTime;
+
+    public PrefetchScheduler(int lookahead, int maxPending, Listener listener) {
+        this.lookahead = lookahead;
+        this.maxPending = maxPending;
+        this.listener = listener;
+    }
+
+    // Called on every scroll, with the number of rows shown and the number of rows requested so far
+    public void onScroll(int firstVisible, int visibleCount, int shown, int requested) {
+
+        long now = SystemClock.uptimeMillis();
+
+        if (lastFirst >= 0 && firstVisible != lastFirst && now > lastScrollTime) {
+
+            // We only care about scrolling down, scrolling up never needs anything new
+            float sample = Math.max(0, firstVisible - lastFirst) / (float) (now - lastScrollTime);
+            velocity = SMOOTHING * velocity + (1 - SMOOTHING) * sample;
+            lastScrollTime = now;
+        } else if (lastFirst < 0) {
+            lastScrollTime = now;
+        }
+
+        lastFirst = firstVisible;
+        lastVisible = visibleCount;
+
+        update(shown, requested);
+    }
+
+    // Called when rows have been shown or requested outside of scrolling, such as when a page has arrived
+    public void update(int shown, int requested) {
+
+        // The page we were waiting for is here, so we know how long it took
+        if (awaitedRows >= 0 && shown >= awaitedRows) {
+            long sample = SystemClock.uptimeMillis() - requestTime;
+            latency = (long) (SMOOTHING * latency + (1 - SMOOTHING) * sample);
+            awaitedRows = -1;
+        }
+
+        // Nothing has been laid out yet
+        if (lastFirst < 0) {
+            return;
+        }
+
+        // Scrolling stops without any callback, so the speed decays if we haven't heard anything in a while
+        long idle = SystemClock.uptimeMillis() - lastScrollTime;
+        float speed = idle > latency ? 0 : velocity;
+
+        int distance = lookahead + (int) Math.ceil(speed * latency);
+        int lastItem = lastFirst + lastVisible;
+
+        if (lastItem + distance >= requested && requested - shown < maxPending) {
+            requestTime = SystemClock.uptimeMillis();
+            awaitedRows = requested + 1;
+            listener.onPrefetch();
+        }
+    }
+
+    // Forgets the page we are waiting for, the measured speed and latency are kept
+    public void reset() {
+        awaitedRows = -1;
+    }
+}
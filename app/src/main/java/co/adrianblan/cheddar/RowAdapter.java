@@ -0,0 +1,56 @@
+package co.adrianblan.cheddar;
+
+import android.view.View;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+
+// Adapter with stable IDs, which can rebind a single row instead of the whole list
+// notifyDataSetChanged makes the ListView rebind every visible row, which is a waste when only one item has changed
+// Structural changes, such as inserts and collapses, still have to go through notifyDataSetChanged
+public abstract class RowAdapter extends BaseAdapter {
+
+    private ListView listView;
+
+    // The list which shows this adapter, so that we can find the row of an item
+    public void setListView(ListView listView) {
+        this.listView = listView;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    // Rebinds the row at the position if it's on screen, rows off screen are bound when they scroll in anyway
+    public void notifyItemChanged(int position) {
+
+        if (position < 0 || position >= getCount()) {
+            return;
+        }
+
+        // Without a list, or with a full layout on the way, the rows may not match the positions
+        if (listView == null || listView.isLayoutRequested()) {
+            notifyDataSetChanged();
+            return;
+        }
+
+        int row = position + listView.getHeaderViewsCount() - listView.getFirstVisiblePosition();
+
+        if (row < 0 || row >= listView.getChildCount()) {
+            return;
+        }
+
+        View child = listView.getChildAt(row);
+
+        // If the adapter made a new view instead of rebinding the old one, the list has to lay it out itself
+        if (getView(position, child, listView) != child) {
+            notifyDataSetChanged();
+        }
+    }
+
+    public void notifyItemRangeChanged(int start, int count) {
+        for (int i = start; i < start + count; i++) {
+            notifyItemChanged(i);
+        }
+    }
+}
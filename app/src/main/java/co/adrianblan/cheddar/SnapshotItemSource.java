@@ -0,0 +1,65 @@
+package co.adrianblan.cheddar;
+
+import com.firebase.client.DataSnapshot;
+
+// Reads item fields straight from a Firebase snapshot, one child at a time
+// Unlike snapshot.getValue() this never builds a map of the whole item
+public class SnapshotItemSource implements ItemSource {
+
+    private final DataSnapshot snapshot;
+
+    public SnapshotItemSource(DataSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    // Returns a source for the snapshot, or null if the item doesn't exist
+    public static SnapshotItemSource of(DataSnapshot snapshot) {
+        if (snapshot == null || !snapshot.exists()) {
+            return null;
+        }
+        return new SnapshotItemSource(snapshot);
+    }
+
+    @Override
+    public boolean has(String field) {
+        return snapshot.hasChild(field);
+    }
+
+    @Override
+    public long getLong(String field, long fallback) {
+        Object value = snapshot.child(field).getValue();
+
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return fallback;
+    }
+
+    @Override
+    public String getString(String field) {
+        Object value = snapshot.child(field).getValue();
+
+        if (value instanceof String) {
+            return (String) value;
+        }
+        return null;
+    }
+
+    @Override
+    public long[] getLongArray(String field) {
+        DataSnapshot child = snapshot.child(field);
+
+        if (!child.exists()) {
+            return null;
+        }
+
+        long[] values = new long[(int) child.getChildrenCount()];
+        int i = 0;
+
+        for (DataSnapshot value : child.getChildren()) {
+            values[i++] = ((Number) value.getValue()).longValue();
+        }
+
+        return values;
+    }
+}
@@ -0,0 +1,82 @@
+package co.adrianblan.cheddar;
+
+import android.os.Build;
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Works around the Jelly Bean bug where measuring text throws an IndexOutOfBoundsException
+// because of spans which touch other characters, see http://code.google.com/p/android/issues/detail?id=35466
+// Spaces are put around such spans once, when the text is produced, instead of retrying the measure until it works
+// If the text still can't be measured, the views fall back to plain text and count it here
+public class SpanSanitizer {
+
+    private static final String TAG = SpanSanitizer.class.getSimpleName();
+
+    // How many times a view has had to fall back to plain text, layouts are also built in the background
+    private static final AtomicInteger fallbacks = new AtomicInteger();
+
+    // Returns whether this version of Android needs the text sanitized at all
+    public static boolean isNeeded() {
+        return Build.VERSION.SDK_INT == Build.VERSION_CODES.JELLY_BEAN;
+    }
+
+    // Inserts a space before and after every span which touches a character that isn't a space
+    // Returns the same builder, so it can be chained
+    public static SpannableStringBuilder sanitize(SpannableStringBuilder builder) {
+
+        if (!isNeeded()) {
+            return builder;
+        }
+
+        Object[] spans = builder.getSpans(0, builder.length(), Object.class);
+
+        if (spans.length == 0) {
+            return builder;
+        }
+
+        // Collect every position which needs a space, before anything moves
+        int[] positions = new int[spans.length * 2];
+        int count = 0;
+
+        for (Object span : spans) {
+            int start = builder.getSpanStart(span);
+            int end = builder.getSpanEnd(span);
+
+            if (start > 0 && builder.charAt(start - 1) != ' ') {
+                positions[count++] = start;
+            }
+            if (end < builder.length() && builder.charAt(end) != ' ') {
+                positions[count++] = end;
+            }
+        }
+
+        // Insert from the back, so that the positions in front stay valid
+        Arrays.sort(positions, 0, count);
+
+        int last = -1;
+        for (int i = count - 1; i >= 0; i--) {
+            if (positions[i] != last) {
+                builder.insert(positions[i], " ");
+                last = positions[i];
+            }
+        }
+
+        return builder;
+    }
+
+    // Called by views when the text could not be measured even after sanitizing it
+    public static void reportFallback(String where) {
+        int count = fallbacks.incrementAndGet();
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Fell back to unspanned text in " + where + ", " + count + " times so far");
+        }
+    }
+
+    public static int getFallbackCount() {
+        return fallbacks.get();
+    }
+}
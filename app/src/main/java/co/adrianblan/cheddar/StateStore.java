@@ -0,0 +1,221 @@
+package co.adrianblan.cheddar;
+
+import android.content.Context;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+// Keeps the lists of screens which are being recreated, so that only a token has to go in the instance state Bundle
+// Snapshots stay in memory for rotations, and are written to a file in case the process is killed in the background
+// Restoring is instant when the snapshot is still in memory, otherwise it's read from disk in the background
+public class StateStore {
+
+    public interface Callback<T> {
+        // Called with the restored list, or null if the snapshot was lost
+        void onRestored(ArrayList<T> items);
+    }
+
+    // Screens which have been gone for this long won't come back
+    private static final long MAX_AGE = TimeUnit.DAYS.toMillis(1);
+
+    // Enough for the feeds and a few comment threads in the back stack
+    private static final int MAX_IN_MEMORY = 8;
+
+    private static StateStore instance;
+
+    private final LruCache<String, ArrayList<?>> snapshots;
+    private final File directory;
+    private final Executor writer;
+
+    public static synchronized StateStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new StateStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private StateStore(Context context) {
+        snapshots = new LruCache<>(MAX_IN_MEMORY);
+        directory = new File(context.getCacheDir(), "state");
+        writer = TaskScheduler.getInstance().executor(TaskScheduler.Lane.SERIAL, TaskScheduler.PRIORITY_BACKGROUND);
+
+        // Throw away the snapshots of screens which never came back
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                prune();
+            }
+        });
+    }
+
+    // A token for a screen which hasn't saved anything yet, it should be reused for every save of that screen
+    public String newToken() {
+        return UUID.randomUUID().toString();
+    }
+
+    // Keeps a snapshot of the list under the token, replacing the previous one
+    public <T> void save(final String token, final ItemCodec.Format<T> format, ArrayList<T> items) {
+
+        // The screen keeps changing its list, so we keep a copy of how it looked
+        snapshots.put(token, new ArrayList<>(items));
+
+        // Encoded right away, the items may change on the main thread while the writer is still busy
+        final byte[] data = ItemCodec.encodeList(format, items);
+
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeToDisk(token, data);
+            }
+        });
+    }
+
+    // Returns a copy of the snapshot if it's still in memory, without touching the disk
+    // It's a copy since the screen will use it as its own list, and the snapshot may be restored again
+    @SuppressWarnings("unchecked")
+    public <T> ArrayList<T> peek(String token) {
+        ArrayList<T> snapshot = token != null ? (ArrayList<T>) snapshots.get(token) : null;
+        return snapshot != null ? new ArrayList<>(snapshot) : null;
+    }
+
+    // Restores the snapshot from memory right away, or from disk in the background
+    // The tag is a TaskScheduler tag, so that the read is cancelled if the screen goes away first
+    public <T> void restore(final String token, final ItemCodec.Format<T> format, Object tag, final Callback<T> callback) {
+
+        ArrayList<T> items = peek(token);
+
+        if (items != null || token == null) {
+            callback.onRestored(items);
+            return;
+        }
+
+        TaskScheduler.getInstance().submit(TaskScheduler.Lane.DECODE, TaskScheduler.PRIORITY_VISIBLE, tag, new TaskScheduler.Task<ArrayList<T>>() {
+            protected ArrayList<T> doInBackground() {
+                byte[] data = readFromDisk(token);
+                return data != null ? ItemCodec.decodeList(format, data) : null;
+            }
+
+            protected void onPostExecute(ArrayList<T> items) {
+                if (items != null) {
+                    snapshots.put(token, new ArrayList<>(items));
+                }
+                callback.onRestored(items);
+            }
+        });
+    }
+
+    // Forgets the snapshot, for when the screen is finished for good
+    public void discard(final String token) {
+
+        if (token == null) {
+            return;
+        }
+
+        snapshots.remove(token);
+
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                fileFor(token).delete();
+            }
+        });
+    }
+
+    private File fileFor(String token) {
+        return new File(directory, token);
+    }
+
+    private void writeToDisk(String token, byte[] data) {
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            return;
+        }
+
+        // Written next to the snapshot and moved into place, so that a crash never leaves half a snapshot behind
+        File file = fileFor(token);
+        File temp = new File(directory, token + ".tmp");
+        OutputStream out = null;
+        boolean written = false;
+
+        try {
+            out = new FileOutputStream(temp);
+            out.write(data);
+            written = true;
+        } catch (Exception e) {
+            System.err.println("Could not store state! " + e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (Exception e) {
+                    written = false;
+                }
+            }
+        }
+
+        if (!written || !temp.renameTo(file)) {
+            temp.delete();
+        }
+    }
+
+    private byte[] readFromDisk(String token) {
+
+        File file = fileFor(token);
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        InputStream in = null;
+
+        try {
+            byte[] data = new byte[(int) file.length()];
+            in = new FileInputStream(file);
+
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n == -1) {
+                    break;
+                }
+                read += n;
+            }
+
+            return read == data.length ? data : null;
+        } catch (Exception e) {
+            System.err.println("Could not restore state! " + e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (Exception ignored) {
+                }
+            }
+        }
+    }
+
+    private void prune() {
+
+        File[] files = directory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (File f : files) {
+            if (now - f.lastModified() > MAX_AGE) {
+                f.delete();
+            }
+        }
+    }
+}
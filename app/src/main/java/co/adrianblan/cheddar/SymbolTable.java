@@ -0,0 +1,79 @@
+package co.adrianblan.cheddar;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Authors and domains repeat all over the feed and the comment threads, so each one is kept once and referred to by a small int
+// Comparing two symbols is an int compare, and labels built from them, such as "[OP]", are built once per symbol
+// Symbols only live as long as the process, anything stored or parcelled has to use the strings
+// Interning is synchronized, looking up the string of a symbol is not locked since it's done on every bind
+public class SymbolTable {
+
+    // The symbol of null, so that missing authors never match each other
+    public static final int NONE = 0;
+
+    private static final HashMap<String, Integer> ids = new HashMap<>();
+
+    // Written under the lock, and published again after every change so that readers see the new entries
+    private static volatile String[] strings = new String[256];
+    private static volatile String[] opLabels = new String[256];
+    private static int count = 1;
+
+    // Returns the symbol of the string, adding it if it's new
+    public static int intern(String s) {
+
+        if (s == null) {
+            return NONE;
+        }
+
+        synchronized (ids) {
+            Integer id = ids.get(s);
+
+            if (id != null) {
+                return id;
+            }
+
+            String[] a = strings;
+            if (count == a.length) {
+                a = Arrays.copyOf(a, a.length * 2);
+            }
+
+            a[count] = s;
+            ids.put(s, count);
+            strings = a;
+
+            return count++;
+        }
+    }
+
+    // Returns the string of the symbol, or null for NONE
+    public static String get(int id) {
+        String[] a = strings;
+        return id > NONE && id < a.length ? a[id] : null;
+    }
+
+    // Returns the name with " [OP]" after it, for the author of the submission
+    public static String opLabel(int id) {
+
+        String[] labels = opLabels;
+        String label = id < labels.length ? labels[id] : null;
+
+        if (label != null || id == NONE) {
+            return label;
+        }
+
+        label = get(id) + " [OP]";
+
+        synchronized (ids) {
+            labels = opLabels;
+            if (id >= labels.length) {
+                labels = Arrays.copyOf(labels, Math.max(labels.length * 2, id + 1));
+            }
+
+            labels[id] = label;
+            opLabels = labels;
+        }
+
+        return label;
+    }
+}
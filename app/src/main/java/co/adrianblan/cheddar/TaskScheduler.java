@@ -0,0 +1,284 @@
+package co.adrianblan.cheddar;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// All background work in the app goes through here, so that we never run more threads than the phone can handle
+// Work is split into lanes which are bounded separately, so that slow downloads can't starve decoding and the other way around
+// Within a lane, tasks with a lower priority value run first, so that rows on screen win over prefetching
+// Tasks can be tagged with the fragment or activity that started them, and cancelled together when it goes away
+public class TaskScheduler {
+
+    public enum Lane {
+        // Waiting on the network, many can wait at once without using the CPU
+        NETWORK,
+        // Reading from disk and decoding images or stored items
+        DECODE,
+        // Pure computation, such as rendering and laying out text
+        CPU,
+        // Writes to disk and the database, one at a time and in the order they were submitted
+        SERIAL
+    }
+
+    // Something the user is looking at right now
+    public static final int PRIORITY_VISIBLE = 0;
+
+    // Something the user will probably scroll to soon
+    public static final int PRIORITY_PREFETCH = 10;
+
+    // Everything else, such as warming caches
+    public static final int PRIORITY_BACKGROUND = 20;
+
+    // A unit of background work, with its result delivered on the main thread like an AsyncTask
+    public static abstract class Task<Result> implements Runnable, Comparable<Task<?>> {
+
+        private int priority;
+        private long sequence;
+        private Object tag;
+        private ThreadPoolExecutor executor;
+
+        // Plain runnables have nothing to deliver, so they don't need a trip to the main thread
+        boolean postResult = true;
+
+        private volatile boolean cancelled;
+        private Thread thread;
+
+        protected abstract Result doInBackground();
+
+        // Called on the main thread, unless the task has been cancelled
+        protected void onPostExecute(Result result) {
+        }
+
+        public final boolean isCancelled() {
+            return cancelled;
+        }
+
+        // Takes the task out of its lane, or interrupts it if it's already running
+        public final void cancel() {
+            cancelled = true;
+
+            // It never got to run, so it won't finish by itself
+            if (executor != null && executor.remove(this)) {
+                getInstance().finished(this);
+            }
+
+            // Locked so that we can't interrupt the thread after it has moved on to another task
+            synchronized (this) {
+                if (thread != null) {
+                    thread.interrupt();
+                }
+            }
+        }
+
+        @Override
+        public final void run() {
+
+            if (cancelled) {
+                getInstance().finished(this);
+                return;
+            }
+
+            synchronized (this) {
+                thread = Thread.currentThread();
+            }
+
+            Result result = null;
+
+            try {
+                result = doInBackground();
+            } catch (Exception e) {
+                System.err.println("Background task failed! " + e);
+            } finally {
+                synchronized (this) {
+                    thread = null;
+
+                    // Don't let a cancel leave the pool thread interrupted for the next task
+                    Thread.interrupted();
+                }
+            }
+
+            if (!postResult) {
+                getInstance().finished(this);
+                return;
+            }
+
+            final Result r = result;
+            getInstance().mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    getInstance().finished(Task.this);
+
+                    if (!cancelled) {
+                        onPostExecute(r);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public int compareTo(Task<?> other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+
+            // First come, first served within the same priority
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    // Adapts plain runnables to a lane, for libraries which want an Executor
+    private static class RunnableTask extends Task<Void> {
+
+        private final Runnable runnable;
+
+        RunnableTask(Runnable runnable) {
+            this.runnable = runnable;
+            postResult = false;
+        }
+
+        @Override
+        protected Void doInBackground() {
+            runnable.run();
+            return null;
+        }
+    }
+
+    private static TaskScheduler instance;
+
+    private final ThreadPoolExecutor[] lanes;
+    private final Handler mainHandler;
+    private final AtomicLong sequence;
+
+    // Tasks which haven't finished, by the tag they were submitted with
+    private final Map<Object, ArrayList<Task<?>>> tagged;
+
+    public static synchronized TaskScheduler getInstance() {
+        if (instance == null) {
+            instance = new TaskScheduler();
+        }
+        return instance;
+    }
+
+    private TaskScheduler() {
+
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        lanes = new ThreadPoolExecutor[Lane.values().length];
+        lanes[Lane.NETWORK.ordinal()] = createLane("network", 4);
+        lanes[Lane.DECODE.ordinal()] = createLane("decode", Math.max(1, Math.min(2, cores - 1)));
+        lanes[Lane.CPU.ordinal()] = createLane("cpu", Math.max(1, cores - 1));
+        lanes[Lane.SERIAL.ordinal()] = createLane("serial", 1);
+
+        mainHandler = new Handler(Looper.getMainLooper());
+        sequence = new AtomicLong();
+        tagged = new HashMap<>();
+    }
+
+    private static ThreadPoolExecutor createLane(final String name, int threads) {
+
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Keep the main thread responsive while we work
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "cheddar-" + name + "-" + count.incrementAndGet());
+            }
+        };
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), factory);
+
+        // Idle lanes shouldn't hold on to their threads
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    // Runs a task in a lane, tagged so that it can be cancelled along with the others from the same owner
+    // The tag may be null for work which is shared, such as filling caches
+    public <Result> Task<Result> submit(Lane lane, int priority, Object tag, Task<Result> task) {
+
+        // Writes must not overtake each other, so the serial lane ignores priorities
+        task.priority = lane == Lane.SERIAL ? 0 : priority;
+        task.sequence = sequence.incrementAndGet();
+        task.tag = tag;
+        task.executor = lanes[lane.ordinal()];
+
+        if (tag != null) {
+            synchronized (tagged) {
+                ArrayList<Task<?>> tasks = tagged.get(tag);
+
+                if (tasks == null) {
+                    tasks = new ArrayList<>();
+                    tagged.put(tag, tasks);
+                }
+                tasks.add(task);
+            }
+        }
+
+        task.executor.execute(task);
+        return task;
+    }
+
+    // Cancels every unfinished task which was submitted with the tag
+    public void cancelAll(Object tag) {
+
+        ArrayList<Task<?>> tasks;
+        synchronized (tagged) {
+            tasks = tagged.remove(tag);
+        }
+
+        if (tasks != null) {
+            for (Task<?> t : tasks) {
+                t.cancel();
+            }
+        }
+    }
+
+    // An executor which runs everything in the lane at the given priority
+    public Executor executor(final Lane lane, final int priority) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                submit(lane, priority, null, new RunnableTask(command));
+            }
+        };
+    }
+
+    private void finished(Task<?> task) {
+
+        if (task.tag == null) {
+            return;
+        }
+
+        synchronized (tagged) {
+            ArrayList<Task<?>> tasks = tagged.get(task.tag);
+
+            if (tasks != null) {
+                tasks.remove(task);
+
+                if (tasks.isEmpty()) {
+                    tagged.remove(task.tag);
+                }
+            }
+        }
+    }
+}
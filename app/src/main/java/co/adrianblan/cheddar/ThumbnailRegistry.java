@@ -0,0 +1,41 @@
+package co.adrianblan.cheddar;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+// Hands thumbnails over from one activity to the next, so that intents only have to carry the submission id
+// Bitmaps are shared with the feed as they are, instead of being scaled and marshalled through the binder
+// Only the most recently opened submissions are kept, enough to cover the back stack
+public class ThumbnailRegistry {
+
+    private static final int MAX_ENTRIES = 32;
+
+    private static ThumbnailRegistry instance;
+
+    private final LruCache<Long, Bitmap> thumbnails;
+
+    public static synchronized ThumbnailRegistry getInstance() {
+        if (instance == null) {
+            instance = new ThumbnailRegistry();
+        }
+        return instance;
+    }
+
+    private ThumbnailRegistry() {
+        thumbnails = new LruCache<>(MAX_ENTRIES);
+    }
+
+    // Remembers the thumbnail of a submission which is about to be opened, or forgets it if there is none
+    public void put(long submissionId, Bitmap thumbnail) {
+        if (thumbnail != null) {
+            thumbnails.put(submissionId, thumbnail);
+        } else {
+            thumbnails.remove(submissionId);
+        }
+    }
+
+    // Returns the thumbnail of the submission, or null if it had none or the process has been restarted since
+    public Bitmap get(long submissionId) {
+        return thumbnails.get(submissionId);
+    }
+}
@@ -0,0 +1,76 @@
+package co.adrianblan.cheddar;
+
+// Turns epoch seconds into short relative labels such as "5m" or "3d"
+// Every label is built once and then reused, so formatting doesn't allocate anything
+// Safe from any thread, at worst two threads build the same label at once
+public class TimeFormatter {
+
+    private static final long MINUTE = 60;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+
+    private static final String[] seconds = new String[60];
+    private static final String[] minutes = new String[60];
+    private static final String[] hours = new String[24];
+
+    // Older items than this are rare enough to not be worth caching
+    private static final String[] days = new String[366];
+
+    // Returns the label for the time, relative to now
+    public static String format(long epochSeconds) {
+        return format(epochSeconds, System.currentTimeMillis());
+    }
+
+    public static String format(long epochSeconds, long nowMillis) {
+
+        // Clocks disagree sometimes, which shouldn't put items in the future
+        long diff = Math.max(0, nowMillis / 1000 - epochSeconds);
+
+        if (diff < MINUTE) {
+            return label(seconds, (int) diff, "s");
+        } else if (diff < HOUR) {
+            return label(minutes, (int) (diff / MINUTE), "m");
+        } else if (diff < DAY) {
+            return label(hours, (int) (diff / HOUR), "h");
+        }
+
+        long d = diff / DAY;
+
+        if (d < days.length) {
+            return label(days, (int) d, "d");
+        }
+
+        return d + "d";
+    }
+
+    // Returns how long it will be until the label of the time changes
+    public static long millisUntilChange(long epochSeconds, long nowMillis) {
+
+        long diff = Math.max(0, nowMillis - epochSeconds * 1000);
+        long unit;
+
+        if (diff < MINUTE * 1000) {
+            unit = 1000;
+        } else if (diff < HOUR * 1000) {
+            unit = MINUTE * 1000;
+        } else if (diff < DAY * 1000) {
+            unit = HOUR * 1000;
+        } else {
+            unit = DAY * 1000;
+        }
+
+        return unit - diff % unit;
+    }
+
+    private static String label(String[] labels, int value, String suffix) {
+
+        String label = labels[value];
+
+        if (label == null) {
+            label = value + suffix;
+            labels[value] = label;
+        }
+
+        return label;
+    }
+}
@@ -0,0 +1,111 @@
+package co.adrianblan.cheddar;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+import android.widget.HeaderViewListAdapter;
+import android.widget.ListAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+// Keeps the relative time labels of the rows on screen current, such as "5m" turning into "6m"
+// It only wakes up when the next label on screen is due to change, and at least once a minute
+// Only the time labels are touched, and only the ones which have actually changed
+public class TimeTicker {
+
+    // Implemented by the adapter of the list, so the ticker can find the time of each row and the label which shows it
+    public interface Rows {
+        long getTimestamp(int position);
+
+        TextView getTimeView(View row);
+    }
+
+    private static final long MIN_DELAY = 1000;
+    private static final long MAX_DELAY = 60 * 1000;
+
+    private final ListView listView;
+    private final Handler handler;
+    private boolean started;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            handler.postDelayed(this, refresh());
+        }
+    };
+
+    public TimeTicker(ListView listView) {
+        this.listView = listView;
+        handler = new Handler(Looper.getMainLooper());
+    }
+
+    public void start() {
+
+        if (started) {
+            return;
+        }
+
+        started = true;
+        handler.post(tick);
+    }
+
+    public void stop() {
+        started = false;
+        handler.removeCallbacks(tick);
+    }
+
+    // Updates the labels on screen, and returns how long we can wait until one of them changes
+    private long refresh() {
+
+        ListAdapter adapter = listView.getAdapter();
+
+        // Lists with headers or footers wrap our adapter
+        if (adapter instanceof HeaderViewListAdapter) {
+            adapter = ((HeaderViewListAdapter) adapter).getWrappedAdapter();
+        }
+
+        if (!(adapter instanceof Rows)) {
+            return MAX_DELAY;
+        }
+
+        // The rows may not match the adapter until the pending layout has run
+        if (listView.isLayoutRequested()) {
+            return MIN_DELAY;
+        }
+
+        Rows rows = (Rows) adapter;
+        long now = System.currentTimeMillis();
+        long next = MAX_DELAY;
+
+        int first = listView.getFirstVisiblePosition() - listView.getHeaderViewsCount();
+        int count = adapter.getCount();
+
+        for (int i = 0; i < listView.getChildCount(); i++) {
+
+            int position = first + i;
+
+            // Headers and footers have no time
+            if (position < 0 || position >= count) {
+                continue;
+            }
+
+            TextView timeView = rows.getTimeView(listView.getChildAt(i));
+
+            if (timeView == null) {
+                continue;
+            }
+
+            long timestamp = rows.getTimestamp(position);
+            String label = TimeFormatter.format(timestamp, now);
+
+            // The labels are shared instances, so this is usually an identity check
+            if (!label.equals(timeView.getText())) {
+                timeView.setText(label);
+            }
+
+            next = Math.min(next, TimeFormatter.millisUntilChange(timestamp, now));
+        }
+
+        return Math.max(MIN_DELAY, next);
+    }
+}
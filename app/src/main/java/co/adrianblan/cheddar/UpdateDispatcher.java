@@ -0,0 +1,245 @@
+package co.adrianblan.cheddar;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseBooleanArray;
+import android.view.Choreographer;
+
+// Collects changes to an adapter and tells the list about them at most once per frame
+// Changed rows are rebound one by one, unless something structural has changed, in which case the whole list is
+// Changes can be marked from any thread, they are always delivered on the main thread
+// Frames are aligned with the Choreographer on Jelly Bean and up, older versions post the flush to the main thread instead
+// Older versions can't wait with changes to the number of items though, those are delivered right away
+public class UpdateDispatcher {
+
+    private static final boolean FRAME_ALIGNED = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+
+    private RowAdapter adapter;
+    private final Handler handler;
+
+    // Positions which have changed since the last flush, or everything if structural is set
+    private final SparseBooleanArray dirty;
+    private boolean structural;
+    private boolean scheduled;
+
+    // How many changes were marked, how many notifications the adapter got for them, and how many flushes that took
+    // Immediate flushes are the ones which couldn't wait for the next frame, they are counted in flushes too
+    private int requests;
+    private int notifications;
+    private int flushes;
+    private int immediateFlushes;
+
+    // The number of items the list was last told about, see markDataSetChanged
+    private int deliveredCount = -1;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final Runnable scheduleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            postFlush();
+        }
+    };
+
+    // Only created on Jelly Bean and up, since older versions don't have the Choreographer
+    private Object frameCallback;
+
+    public UpdateDispatcher(RowAdapter adapter) {
+        this.adapter = adapter;
+        handler = new Handler(Looper.getMainLooper());
+        dirty = new SparseBooleanArray();
+    }
+
+    // Switches to another adapter, which gets a full update on the next frame
+    public void setAdapter(RowAdapter adapter) {
+        synchronized (this) {
+            this.adapter = adapter;
+        }
+        markDataSetChanged();
+    }
+
+    // The item at the position has changed, but nothing has moved
+    public void markChanged(int position) {
+
+        if (position < 0) {
+            return;
+        }
+
+        synchronized (this) {
+            requests++;
+
+            if (!structural) {
+                dirty.put(position, true);
+            }
+        }
+
+        schedule();
+    }
+
+    // Items have been added, removed or moved
+    public void markDataSetChanged() {
+
+        synchronized (this) {
+            requests++;
+            structural = true;
+            dirty.clear();
+        }
+
+        // Before Jelly Bean the list could lay out before our post, and it throws if the count changed behind its back
+        // Changes which keep the count are safe to hold back until the post like everything else
+        if (!FRAME_ALIGNED && Looper.myLooper() == Looper.getMainLooper() && countChanged()) {
+            synchronized (this) {
+                immediateFlushes++;
+            }
+            flush();
+            return;
+        }
+
+        schedule();
+    }
+
+    // Delivers the pending changes right away, must be called on the main thread
+    public void flush() {
+
+        RowAdapter target;
+        boolean all;
+        int[] positions;
+
+        synchronized (this) {
+            scheduled = false;
+
+            if (!structural && dirty.size() == 0) {
+                return;
+            }
+
+            target = adapter;
+            all = structural;
+            positions = new int[dirty.size()];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = dirty.keyAt(i);
+            }
+
+            structural = false;
+            dirty.clear();
+            flushes++;
+            notifications += all ? 1 : positions.length;
+        }
+
+        if (all) {
+            deliveredCount = target.getCount();
+            target.notifyDataSetChanged();
+        } else {
+            for (int p : positions) {
+                target.notifyItemChanged(p);
+            }
+        }
+    }
+
+    // Drops everything which hasn't been delivered, such as when the list goes away
+    public void cancel() {
+
+        synchronized (this) {
+            structural = false;
+            dirty.clear();
+            scheduled = false;
+        }
+
+        handler.removeCallbacks(flushRunnable);
+        handler.removeCallbacks(scheduleRunnable);
+
+        if (FRAME_ALIGNED && frameCallback != null) {
+            FrameCallbacks.remove(frameCallback);
+        }
+    }
+
+    public synchronized int getRequestCount() {
+        return requests;
+    }
+
+    public synchronized int getNotificationCount() {
+        return notifications;
+    }
+
+    public synchronized int getFlushCount() {
+        return flushes;
+    }
+
+    // Flushes which were delivered right away instead of on the next frame, only happens before Jelly Bean
+    public synchronized int getImmediateFlushCount() {
+        return immediateFlushes;
+    }
+
+    // Changes which were folded into another notification instead of getting their own
+    public synchronized int getCoalescedCount() {
+        return requests - notifications;
+    }
+
+    // Whether the adapter has a different number of items than the list was last told about
+    private boolean countChanged() {
+
+        RowAdapter target;
+        synchronized (this) {
+            target = adapter;
+        }
+
+        return target.getCount() != deliveredCount;
+    }
+
+    private void schedule() {
+
+        synchronized (this) {
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+
+        // The Choreographer belongs to the main thread, so we have to be there to post to it
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            postFlush();
+        } else {
+            handler.post(scheduleRunnable);
+        }
+    }
+
+    private void postFlush() {
+
+        if (FRAME_ALIGNED) {
+            if (frameCallback == null) {
+                frameCallback = FrameCallbacks.create(flushRunnable);
+            }
+            FrameCallbacks.post(frameCallback);
+        } else {
+            handler.post(flushRunnable);
+        }
+    }
+
+    // Kept apart so that older versions never load the Choreographer classes
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class FrameCallbacks {
+
+        static Object create(final Runnable runnable) {
+            return new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    runnable.run();
+                }
+            };
+        }
+
+        static void post(Object callback) {
+            Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) callback);
+        }
+
+        static void remove(Object callback) {
+            Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) callback);
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package co.adrianblan.cheddar;
 
 import android.content.Intent;
-import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
@@ -22,7 +21,6 @@ public class WebViewActivity extends AppCompatActivity {
     private WebView myWebView;
     private ProgressBar progressBar;
     private FeedItem feedItem;
-    private Bitmap thumbnail;
     private boolean hasFeedItem;
 
     @Override
@@ -48,7 +46,6 @@ public class WebViewActivity extends AppCompatActivity {
         // If we have a related feed item, we choose the advanced toolbar
         if(feedItem != null){
             hasFeedItem = true;
-            thumbnail = getIntent().getParcelableExtra("thumbnail");
             getSupportActionBar().setTitle(feedItem.getTitle());
             getSupportActionBar().setSubtitle(feedItem.getShortUrl());
 
@@ -162,7 +159,6 @@ public class WebViewActivity extends AppCompatActivity {
             Intent intent = new Intent(getApplicationContext(), CommentActivity.class);
             Bundle b = new Bundle();
             b.putParcelable("feedItem", feedItem);
-            intent.putExtra("thumbnail", thumbnail);
             intent.putExtras(b);
             startActivity(intent);
         }
@@ -0,0 +1,318 @@
+package co.adrianblan.cheddar;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Checks the treap against a plain list which does everything the slow way
+public class IndexedCommentListTest extends TestCase {
+
+    // The same thread kept as a plain list of rows in the order they are shown
+    private static class Model {
+        final ArrayList<Integer> rows = new ArrayList<>();
+        final ArrayList<Integer> parents = new ArrayList<>(); // By row, -1 for top level
+        final ArrayList<Integer> hierarchies = new ArrayList<>(); // By row
+        final ArrayList<Boolean> collapsed = new ArrayList<>(); // By row
+
+        int descendants(int index) {
+            int h = hierarchies.get(rows.get(index));
+            int end = index + 1;
+            while (end < rows.size() && hierarchies.get(rows.get(end)) > h) {
+                end++;
+            }
+            return end - index - 1;
+        }
+
+        int collapsedAncestors(int row) {
+            int count = 0;
+            for (int p = parents.get(row); p >= 0; p = parents.get(p)) {
+                if (collapsed.get(p)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        List<Integer> visible() {
+            ArrayList<Integer> out = new ArrayList<>();
+            for (int row : rows) {
+                if (collapsedAncestors(row) == 0) {
+                    out.add(row);
+                }
+            }
+            return out;
+        }
+    }
+
+    private static Comment comment(long id, int hierarchy) {
+        Comment c = new Comment();
+        c.setId(id);
+        c.setHierarchy(hierarchy);
+        c.setBody("Comment " + id);
+        return c;
+    }
+
+    // Adds a reply after the parent and its earlier replies, like the CommentTreeLoader does
+    private static int reply(IndexedCommentList list, Model model, int parent) {
+
+        int hierarchy = parent < 0 ? 0 : model.hierarchies.get(parent) + 1;
+        int index;
+
+        if (parent < 0) {
+            index = model.rows.size();
+        } else {
+            int p = model.rows.indexOf(parent);
+            index = p + 1 + model.descendants(p);
+        }
+
+        int row = list.add(index, comment(model.rows.size(), hierarchy), 0);
+        assertEquals(model.rows.size(), row);
+
+        model.rows.add(index, row);
+        model.parents.add(parent);
+        model.hierarchies.add(hierarchy);
+        model.collapsed.add(false);
+
+        return row;
+    }
+
+    // Also counts the replies which arrive below collapsed comments
+    private static int replyMaybeHidden(IndexedCommentList list, Model model, int parent) {
+
+        int hierarchy = parent < 0 ? 0 : model.hierarchies.get(parent) + 1;
+        int index = parent < 0 ? model.rows.size() : model.rows.indexOf(parent) + 1 + model.descendants(model.rows.indexOf(parent));
+
+        model.parents.add(parent);
+        model.hierarchies.add(hierarchy);
+        model.collapsed.add(false);
+        int hiddenBy = model.collapsedAncestors(model.parents.size() - 1);
+
+        int row = list.add(index, comment(model.rows.size(), hierarchy), hiddenBy);
+        model.rows.add(index, row);
+
+        return row;
+    }
+
+    private static void setCollapsed(IndexedCommentList list, Model model, int row, boolean collapsed) {
+        list.setCollapsed(list.indexOf(row), collapsed);
+        model.collapsed.set(row, collapsed);
+    }
+
+    private static void assertMatches(IndexedCommentList list, Model model) {
+
+        assertEquals(model.rows.size(), list.size());
+        assertEquals(model.rows.isEmpty(), list.isEmpty());
+
+        for (int i = 0; i < model.rows.size(); i++) {
+            int row = model.rows.get(i);
+            assertEquals(row, list.getRow(i));
+            assertEquals(i, list.indexOf(row));
+            assertEquals(model.descendants(i), list.countDescendants(i));
+            assertEquals((int) model.hierarchies.get(row), list.getColumns().getHierarchy(row));
+        }
+
+        List<Integer> visible = model.visible();
+        assertEquals(visible.size(), list.visibleSize());
+
+        for (int i = 0; i < visible.size(); i++) {
+            assertEquals((int) visible.get(i), list.getVisibleRow(i));
+        }
+    }
+
+    public void testRandomInsertsMatchList() {
+
+        Random random = new Random(42);
+        IndexedCommentList list = new IndexedCommentList();
+        Model model = new Model();
+
+        for (int i = 0; i < 1500; i++) {
+
+            // A few top level comments, and replies anywhere below them
+            int parent = model.rows.isEmpty() || random.nextInt(10) == 0 ? -1 : random.nextInt(model.rows.size());
+            reply(list, model, parent);
+
+            if (i % 100 == 0) {
+                assertMatches(list, model);
+            }
+        }
+
+        assertMatches(list, model);
+    }
+
+    public void testOutOfRange() {
+
+        IndexedCommentList list = new IndexedCommentList();
+        list.add(comment(1, 0));
+
+        assertEquals(-1, list.indexOf(5));
+        assertEquals(-1, list.indexOf(-1));
+
+        try {
+            list.getRow(1);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+
+        try {
+            list.add(3, comment(2, 0), 0);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
+    public void testNestedCollapseAndExpand() {
+
+        Random random = new Random(7);
+        IndexedCommentList list = new IndexedCommentList();
+        Model model = new Model();
+
+        for (int i = 0; i < 400; i++) {
+            int parent = model.rows.isEmpty() || random.nextInt(8) == 0 ? -1 : random.nextInt(model.rows.size());
+            reply(list, model, parent);
+        }
+
+        // Collapse and expand in any order, including comments which are themselves hidden
+        for (int i = 0; i < 600; i++) {
+            int row = random.nextInt(model.rows.size());
+            setCollapsed(list, model, row, !model.collapsed.get(row));
+
+            if (i % 25 == 0) {
+                assertMatches(list, model);
+            }
+        }
+
+        // Expanding everything brings the whole thread back
+        for (int row = 0; row < model.rows.size(); row++) {
+            if (model.collapsed.get(row)) {
+                setCollapsed(list, model, row, false);
+            }
+        }
+
+        assertMatches(list, model);
+        assertEquals(list.size(), list.visibleSize());
+    }
+
+    public void testRepliesArrivingBelowCollapsedComments() {
+
+        Random random = new Random(3);
+        IndexedCommentList list = new IndexedCommentList();
+        Model model = new Model();
+
+        for (int i = 0; i < 800; i++) {
+            int parent = model.rows.isEmpty() || random.nextInt(10) == 0 ? -1 : random.nextInt(model.rows.size());
+            replyMaybeHidden(list, model, parent);
+
+            if (random.nextInt(20) == 0) {
+                int row = random.nextInt(model.rows.size());
+                setCollapsed(list, model, row, !model.collapsed.get(row));
+            }
+        }
+
+        assertMatches(list, model);
+    }
+
+    // A big collapsed thread should take up a single row, with nothing left behind for its replies
+    public void testCollapsedSubtreeLeavesNoRows() {
+
+        Random random = new Random(11);
+        IndexedCommentList list = new IndexedCommentList();
+        Model model = new Model();
+
+        int before = reply(list, model, -1);
+        int top = reply(list, model, -1);
+        int after = reply(list, model, -1);
+
+        // 500 replies below the middle comment, nested at random
+        ArrayList<Integer> subtree = new ArrayList<>();
+        subtree.add(top);
+        for (int i = 0; i < 500; i++) {
+            subtree.add(reply(list, model, subtree.get(random.nextInt(subtree.size()))));
+        }
+
+        // Collapse some of the replies first, so there is nested collapsed state to keep
+        ArrayList<Integer> nested = new ArrayList<>();
+        for (int i = 1; i < subtree.size(); i += 37) {
+            setCollapsed(list, model, subtree.get(i), true);
+            nested.add(subtree.get(i));
+        }
+        assertMatches(list, model);
+        int expandedVisible = list.visibleSize();
+
+        assertEquals(500, list.countDescendants(list.indexOf(top)));
+        setCollapsed(list, model, top, true);
+
+        assertEquals(3, list.visibleSize());
+        assertEquals(before, list.getVisibleRow(0));
+        assertEquals(top, list.getVisibleRow(1));
+        assertEquals(after, list.getVisibleRow(2));
+        assertMatches(list, model);
+
+        // Expanding brings back exactly what was shown before, with the nested replies still collapsed
+        setCollapsed(list, model, top, false);
+
+        assertEquals(expandedVisible, list.visibleSize());
+        assertMatches(list, model);
+
+        List<Integer> visible = model.visible();
+        for (int row : nested) {
+            int index = list.indexOf(row);
+            int descendants = list.countDescendants(index);
+            for (int i = 1; i <= descendants; i++) {
+                assertFalse(visible.contains(list.getRow(index + i)));
+            }
+        }
+    }
+
+    public void testCopyKeepsCollapsedComments() {
+
+        ArrayList<Comment> comments = new ArrayList<>();
+        comments.add(comment(1, 0));
+        comments.add(comment(2, 1));
+        comments.add(comment(3, 2));
+        comments.add(comment(4, 1));
+        comments.add(comment(5, 0));
+        comments.get(1).setHideChildren(true);
+
+        IndexedCommentList list = new IndexedCommentList(comments);
+
+        assertEquals(5, list.size());
+        assertEquals(4, list.visibleSize());
+        assertEquals(3, list.getVisibleRow(2));
+        assertTrue(list.getColumns().isCollapsed(1));
+
+        ArrayList<Comment> copy = list.toArrayList();
+        assertEquals(5, copy.size());
+        for (int i = 0; i < copy.size(); i++) {
+            assertEquals(comments.get(i).getId(), copy.get(i).getId());
+        }
+    }
+
+    public void testClear() {
+
+        IndexedCommentList list = new IndexedCommentList();
+        Model model = new Model();
+
+        for (int i = 0; i < 50; i++) {
+            reply(list, model, i == 0 ? -1 : i - 1);
+        }
+        setCollapsed(list, model, 0, true);
+
+        list.clear();
+
+        assertTrue(list.isEmpty());
+        assertEquals(0, list.size());
+        assertEquals(0, list.visibleSize());
+        assertEquals(0, list.getColumns().size());
+        assertEquals(-1, list.indexOf(0));
+
+        // Rows start over, and nothing is left collapsed
+        model = new Model();
+        reply(list, model, -1);
+        reply(list, model, 0);
+
+        assertFalse(list.getColumns().isCollapsed(0));
+        assertMatches(list, model);
+    }
+}
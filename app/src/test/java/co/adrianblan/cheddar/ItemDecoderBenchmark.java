@@ -0,0 +1,116 @@
+package co.adrianblan.cheddar;
+
+import junit.framework.TestCase;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Rough timings of the decoder on the JVM, printed rather than asserted since they depend on the machine
+// Each run is repeated a few times so that the JIT has warmed up before the last one, which is the one printed
+public class ItemDecoderBenchmark extends TestCase {
+
+    private static final int ITEMS = 20000;
+    private static final int RUNS = 5;
+
+    private static final String[] DOMAINS = {"github.com", "www.nytimes.com", "medium.com", "blog.example.org", "arstechnica.com"};
+
+    private static ArrayList<ItemSource> stories() {
+
+        ArrayList<ItemSource> items = new ArrayList<>(ITEMS);
+
+        for (int i = 0; i < ITEMS; i++) {
+            Map<String, Object> map = new HashMap<>();
+            map.put("title", "Story number " + i);
+            map.put("by", "user" + (i % 300));
+            map.put("text", "<p>Some text with a <a href=\"https://example.com\">link</a> " + i);
+            map.put("score", (long) (i % 700));
+            map.put("time", 1437800000L + i);
+            map.put("descendants", (long) (i % 120));
+            map.put("url", "https://" + DOMAINS[i % DOMAINS.length] + "/articles/" + i + "?ref=hn");
+            map.put("kids", Arrays.asList((long) i + 1, (long) i + 2, (long) i + 3));
+            items.add(new MapItemSource(map));
+        }
+
+        return items;
+    }
+
+    private static void report(String name, long nanos) {
+        System.out.println(String.format("%s: %.0f ns per item", name, nanos / (double) ITEMS));
+    }
+
+    public void testDecodeFeedItems() {
+
+        ArrayList<ItemSource> items = stories();
+        long best = Long.MAX_VALUE;
+        long checksum = 0;
+
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+
+            for (int i = 0; i < ITEMS; i++) {
+                FeedItem f = ItemDecoder.decodeFeedItem(i, items.get(i));
+                checksum += f.getScore();
+            }
+
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        report("decodeFeedItem", best);
+        assertTrue(checksum > 0);
+    }
+
+    public void testDecodeComments() {
+
+        ArrayList<ItemSource> items = stories();
+        long best = Long.MAX_VALUE;
+        long checksum = 0;
+
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+
+            for (int i = 0; i < ITEMS; i++) {
+                Comment c = ItemDecoder.decodeComment(i, items.get(i));
+                checksum += c == null ? 0 : ItemDecoder.decodeKids(items.get(i)).length;
+            }
+
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        report("decodeComment", best);
+        assertEquals(3L * ITEMS * RUNS, checksum);
+    }
+
+    // The string scan we use against the URL object we used to create for every item
+    public void testGetHost() throws Exception {
+
+        String[] urls = new String[ITEMS];
+        for (int i = 0; i < ITEMS; i++) {
+            urls[i] = "https://" + DOMAINS[i % DOMAINS.length] + "/articles/" + i + "?ref=hn";
+        }
+
+        long scan = Long.MAX_VALUE;
+        long url = Long.MAX_VALUE;
+        int checksum = 0;
+
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            for (String u : urls) {
+                checksum += ItemDecoder.getHost(u).length();
+            }
+            scan = Math.min(scan, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (String u : urls) {
+                checksum -= new URL(u).getHost().length();
+            }
+            url = Math.min(url, System.nanoTime() - start);
+        }
+
+        report("getHost", scan);
+        report("URL.getHost", url);
+        assertEquals(0, checksum);
+    }
+}